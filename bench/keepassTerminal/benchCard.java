@@ -0,0 +1,82 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package keepassTerminal;
+
+import javacard.framework.AID;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+import keepassSafe.passwordSafe;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+
+//Bench Card Class
+//passwordSafe in jCardSim behind a simulated reader, personalised and with both Data Files
+//Commands run on the calling thread, so a benchmark measures the APDU path only
+public class benchCard {
+	
+	static final byte[] PIN = {'1', '2', '3', '4'};
+	static final byte[] MASTER_PW = "master password".getBytes();
+	static final String FILE_NAME = "safe.kdbx";
+	
+	final CardSimulator simulator;
+	final CardChannel channel;
+	final safeClient client;
+	
+	//Create Bench Card
+	// size1, size2 = Sizes of the Data Files, filled with test Data
+	benchCard(int size1, int size2) throws CardException {
+		byte[] aid = safeClient.APPLET_AID;
+		byte[] params = new byte[aid.length + 3];
+		params[0] = (byte)aid.length;
+		System.arraycopy(aid, 0, params, 1, aid.length);
+		
+		simulator = new CardSimulator();
+		simulator.installApplet(new AID(aid, (short)0, (byte)aid.length), passwordSafe.class, params, (short)0, (byte)params.length);
+		CardTerminal terminal = CardTerminalSimulator.terminal(simulator);
+		channel = terminal.connect("T=1").getBasicChannel();
+		client = new safeClient(channel, Runnable::run);
+		
+		client.select().join();
+		client.transmit(0x20, 0x00, 0x01, PIN, 256);
+		client.verify(PIN).join();
+		client.createFiles(size1, size2, FILE_NAME).join();
+		client.setMasterPW(MASTER_PW).join();
+		client.setStatusPublic(true).join();
+		client.setChunkSizes(safeClient.DEFAULT_READ_CHUNK, safeClient.DEFAULT_WRITE_CHUNK);
+		client.writeFile(safeClient.FILE_DATA1, 0, pattern(size1)).join();
+		client.writeFile(safeClient.FILE_DATA2, 0, pattern(size2)).join();
+	}
+	
+	//Method for getting test Data
+	static byte[] pattern(int length) {
+		byte[] data = new byte[length];
+		for(int i = 0; i < length; i++) {
+			data[i] = (byte)(i * 7);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package keepassTerminal;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+//Latency of File transfers per chunk size
+//Chunks above a short APDU are sent as extended APDUs over T=1
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class chunkBenchmark {
+	
+	private static final int FILE_SIZE = 8192;
+	
+	@Param({"64", "128", "250", "1024", "4096"})
+	public int chunk;
+	
+	private safeClient client;
+	private byte[] data;
+	
+	@Setup
+	public void setUp() throws CardException {
+		client = new benchCard(FILE_SIZE, FILE_SIZE / 2).client;
+		client.setChunkSizes(chunk, chunk);
+		data = benchCard.pattern(FILE_SIZE);
+		
+		//A halved chunk would measure another size
+		writeFile();
+		if(!Arrays.equals(data, readFile()) || client.getReadChunk() != chunk || client.getWriteChunk() != chunk) {
+			throw new IllegalStateException("Chunk not taken by the card: " + chunk);
+		}
+	}
+	
+	@Benchmark
+	public byte[] readFile() {
+		return client.readFile(safeClient.FILE_DATA1).join();
+	}
+	
+	@Benchmark
+	public byte[][] readBothFiles() {
+		return client.readBothFiles().join();
+	}
+	
+	@Benchmark
+	public Void writeFile() {
+		return client.writeFile(safeClient.FILE_DATA1, 0, data).join();
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package keepassTerminal;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+//Latency of single commands, one benchmark per INS
+//PIN stays verified, every command is answered with 9000
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class insBenchmark {
+	
+	private static final int FILE_SIZE = 2048;
+	private static final int BLOCK = 0xFA;
+	
+	private benchCard card;
+	private safeClient client;
+	private byte[] readCommand;
+	private byte[] writeCommand;
+	
+	@Setup
+	public void setUp() throws CardException {
+		card = new benchCard(FILE_SIZE, 64);
+		client = card.client;
+		readCommand = new byte[] {0, 0, 0, (byte)BLOCK};
+		writeCommand = new byte[2 + BLOCK];
+		System.arraycopy(benchCard.pattern(BLOCK), 0, writeCommand, 2, BLOCK);
+	}
+	
+	//INS A4
+	@Benchmark
+	public cardStatus select() {
+		return client.selectStatus().join();
+	}
+	
+	//INS 21, also keeps the PIN verified after select
+	@Benchmark
+	public int verifyPin() {
+		return client.verify(benchCard.PIN).join();
+	}
+	
+	//INS 31
+	@Benchmark
+	public byte[] getMasterPW() {
+		return client.getMasterPW().join();
+	}
+	
+	//INS 41, one block
+	@Benchmark
+	public byte[] updateBinary() throws CardException {
+		return client.transmit(safeClient.INS_UPDATE_BINARY, 0x03, safeClient.FILE_DATA1, writeCommand, 0);
+	}
+	
+	//INS 42, one block
+	@Benchmark
+	public byte[] readBinary() throws CardException {
+		return client.transmit(safeClient.INS_READ_BINARY, 0x03, safeClient.FILE_DATA1, readCommand, BLOCK);
+	}
+	
+	//INS 44
+	@Benchmark
+	public int[] fileSizes() {
+		return client.getFileSizes().join();
+	}
+	
+	//INS 45
+	@Benchmark
+	public String fileName() {
+		return client.getFileName().join();
+	}
+	
+	//INS 48
+	@Benchmark
+	public Object fileStates() {
+		return client.getFileStates().join();
+	}
+	
+	//INS 54
+	@Benchmark
+	public cardCapabilities capabilities() {
+		return client.getCapabilities().join();
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package keepassTerminal;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.smartcardio.CardException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+//Latency of unlocking the safe: select, PIN, Master PW and both Data Files
+//One command per step against the combined SELECT status and read of both Files
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class unlockBenchmark {
+	
+	private static final int FILE_SIZE = 8192;
+	private static final int KEY_FILE_SIZE = 64;
+	
+	private safeClient client;
+	
+	@Setup
+	public void setUp() throws CardException {
+		client = new benchCard(FILE_SIZE, KEY_FILE_SIZE).client;
+		client.adaptChunkSizes().join();
+	}
+	
+	//Select, PIN, File sizes, File Name, Master PW, File 1, File 2
+	@Benchmark
+	public byte[][] singleCommands() {
+		client.select().join();
+		client.verify(benchCard.PIN).join();
+		client.getFileSizes().join();
+		client.getFileName().join();
+		byte[] password = client.getMasterPW().join();
+		return new byte[][] {password, client.readFile(safeClient.FILE_DATA1).join(), client.readFile(safeClient.FILE_DATA2).join()};
+	}
+	
+	//SELECT with status, PIN, Master PW, both Files together
+	@Benchmark
+	public byte[][] combinedCommands() {
+		client.selectStatus().join();
+		client.verify(benchCard.PIN).join();
+		byte[] password = client.getMasterPW().join();
+		byte[][] files = client.readBothFiles().join();
+		return new byte[][] {password, files[0], files[1]};
+	}
+}
@@ -0,0 +1,275 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassSafe;
+
+import javacard.framework.*;
+import javacard.security.*;
+import javacardx.crypto.*;
+
+//Crypto Engine Class
+//Key and Cipher are created one time, encrypt/decrypt never allocate
+//Also holds the Secure Messaging session for File transfers
+public class cryptoEngine {
+
+	//Index in the transient key state array
+	private static final short KEY_LOADED   = (short)0;
+	private static final short SESSION_OPEN = (short)1;
+	private static final short CIPHER_READY = (short)2;
+	
+	//Status word for malformed Secure Messaging Data
+	//Wrong MAC, replayed commands and a used up counter get SW_SECURITY_STATUS_NOT_SATISFIED
+	public static final short SW_SECURE_MESSAGING = (short)0x6988;
+	
+	//Variables for Secure Messaging
+	//Data = CBC encrypted Data with 80 00.. padding + MAC over header block and encrypted Data
+	//IV = header block encrypted with the Session ENC Key, like the SCP03 counter block
+	public static final short BLOCK_LENGTH = (short)16;
+	public static final short CHALLENGE_LENGTH = (short)16;
+	public static final short MAC_LENGTH = (short)16;
+	private static final byte LABEL_ENC = (byte)0x01;
+	private static final byte LABEL_MAC = (byte)0x02;
+	private static final byte DIRECTION_COMMAND  = (byte)0x00;
+	private static final byte DIRECTION_RESPONSE = (byte)0x01;
+
+	//Key and Cipher objects, one Cipher per direction
+	//Both stay initialized with the key for the whole selection
+	private AESKey key;
+	private Cipher encryptCipher;
+	private Cipher decryptCipher;
+
+	//Persistent key material and transient key state
+	private byte[] keyData;
+	private boolean[] keyState;
+	
+	//Session Keys, Cipher and MAC
+	private AESKey sessionEncKey;
+	private AESKey sessionMacKey;
+	private Cipher sessionCipher;
+	private Cipher sessionIvCipher;
+	private Signature sessionMac;
+	//Digest for the PIN key and the Session Keys, shared with the Filesystem
+	private MessageDigest digest;
+	//Header block and IV, also used for deriving the Session Keys
+	private byte[] work;
+	private short[] counter;
+
+	//Create Crypto Engine
+	// keyData = persistent Array holding the AES-256 key
+	public cryptoEngine(byte[] keyData) {
+		this.keyData = keyData;
+		key = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_256, false);
+		encryptCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
+		decryptCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
+		keyState = JCSystem.makeTransientBooleanArray((short)3, JCSystem.CLEAR_ON_DESELECT);
+		
+		sessionEncKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+		sessionMacKey = (AESKey) KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_128, false);
+		sessionCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_CBC_NOPAD, false);
+		sessionIvCipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
+		sessionMac = Signature.getInstance(Signature.ALG_AES_MAC_128_NOPAD, false);
+		digest = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
+		work = JCSystem.makeTransientByteArray((short)32, JCSystem.CLEAR_ON_DESELECT);
+		counter = JCSystem.makeTransientShortArray((short)1, JCSystem.CLEAR_ON_DESELECT);
+	}
+
+	//Method for setting the key material from a PIN
+	//Key = SHA-256(PIN), loaded at once
+	// pinData = Array with the PIN
+	// offset = Offset of the PIN
+	// length = Length of the PIN
+	public void setKeyFromPIN(byte[] pinData, short offset, short length) {
+		digest.reset();
+		digest.doFinal(pinData, offset, length, keyData, (short)0);
+		keyState[KEY_LOADED] = false;
+		keyState[CIPHER_READY] = false;
+		closeSession();
+		prepareKey();
+	}
+	
+	//Method for loading the key and initializing both Ciphers
+	//Called after PIN verification, later encrypt/decrypt skip key setup
+	public void prepareKey() {
+		if(!keyState[KEY_LOADED]) {
+			key.setKey(keyData, (short)0);
+			keyState[KEY_LOADED] = true;
+			keyState[CIPHER_READY] = false;
+		}
+		if(!keyState[CIPHER_READY]) {
+			encryptCipher.init(key, Cipher.MODE_ENCRYPT);
+			decryptCipher.init(key, Cipher.MODE_DECRYPT);
+			keyState[CIPHER_READY] = true;
+		}
+	}
+	
+	//Method for getting the shared Digest
+	public MessageDigest getDigest() {
+		return digest;
+	}
+	
+	//Method for opening a Secure Messaging session
+	//Session Keys = SHA-256(key + label + host challenge + card challenge), first 16 Bytes
+	// challenges = host challenge followed by card challenge
+	// offset = Offset of the challenges
+	public void openSession(byte[] challenges, short offset) {
+		deriveSessionKey(LABEL_ENC, challenges, offset, sessionEncKey);
+		deriveSessionKey(LABEL_MAC, challenges, offset, sessionMacKey);
+		Util.arrayFillNonAtomic(work, (short)0, (short)work.length, (byte)0x00);
+		
+		counter[0] = (short)0;
+		keyState[SESSION_OPEN] = true;
+	}
+	
+	//Method for closing the Secure Messaging session
+	public void closeSession() {
+		keyState[SESSION_OPEN] = false;
+		sessionEncKey.clearKey();
+		sessionMacKey.clearKey();
+	}
+	
+	//Method for checking if a Secure Messaging session is open
+	public boolean isSessionOpen() {
+		return keyState[SESSION_OPEN];
+	}
+	
+	//Method for checking and decrypting a command in place
+	//Wrong Data closes the session, so does the last counter value
+	// ins = INS of the command
+	// buff = Array with the Data
+	// offset = Offset of the Data
+	// length = Length of encrypted Data and MAC
+	//Returns length of the decrypted Data
+	public short unwrap(byte ins, byte[] buff, short offset, short length) {
+		short encLength = (short)(length - MAC_LENGTH);
+		if(!keyState[SESSION_OPEN]) {
+			failSession(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+		if(encLength <= 0 || (short)(encLength % BLOCK_LENGTH) != 0) {
+			failSession(SW_SECURE_MESSAGING);
+		}
+		
+		//Next command of the session, the counter must not start again
+		if(counter[0] == (short)0xFFFF) {
+			failSession(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+		counter[0]++;
+		setHeader(DIRECTION_COMMAND, ins, encLength);
+		
+		//Check MAC, a replayed command has an old counter
+		sessionMac.init(sessionMacKey, Signature.MODE_VERIFY);
+		sessionMac.update(work, (short)0, BLOCK_LENGTH);
+		if(!sessionMac.verify(buff, offset, encLength, buff, (short)(offset + encLength), MAC_LENGTH)) {
+			failSession(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+		
+		//Decrypt and remove padding
+		sessionCipher.init(sessionEncKey, Cipher.MODE_DECRYPT, work, BLOCK_LENGTH, BLOCK_LENGTH);
+		sessionCipher.doFinal(buff, offset, encLength, buff, offset);
+		
+		short end = (short)(offset + encLength - 1);
+		while(end >= offset && buff[end] == (byte)0x00) {
+			end--;
+		}
+		if(end < offset || buff[end] != (byte)0x80) {
+			failSession(SW_SECURE_MESSAGING);
+		}
+		
+		return (short)(end - offset);
+	}
+	
+	//Method for padding, encrypting and signing a response in place
+	//Array must have room for padding and MAC
+	// ins = INS of the command
+	// buff = Array with the Data
+	// offset = Offset of the Data
+	// length = Length of the Data
+	//Returns length of encrypted Data and MAC
+	public short wrap(byte ins, byte[] buff, short offset, short length) {
+		if(!keyState[SESSION_OPEN]) {
+			failSession(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+		
+		//Pad Data with 80 00..
+		short encLength = (short)((short)(length / BLOCK_LENGTH + 1) * BLOCK_LENGTH);
+		buff[(short)(offset + length)] = (byte)0x80;
+		Util.arrayFillNonAtomic(buff, (short)(offset + length + 1), (short)(encLength - length - 1), (byte)0x00);
+		setHeader(DIRECTION_RESPONSE, ins, encLength);
+		
+		//Encrypt and add MAC
+		sessionCipher.init(sessionEncKey, Cipher.MODE_ENCRYPT, work, BLOCK_LENGTH, BLOCK_LENGTH);
+		sessionCipher.doFinal(buff, offset, encLength, buff, offset);
+		
+		sessionMac.init(sessionMacKey, Signature.MODE_SIGN);
+		sessionMac.update(work, (short)0, BLOCK_LENGTH);
+		sessionMac.sign(buff, offset, encLength, buff, (short)(offset + encLength));
+		
+		return (short)(encLength + MAC_LENGTH);
+	}
+	
+	//Method for setting the header block and the IV of a message
+	//Header = direction + INS + counter + length, first MAC block
+	//IV = encrypted header, behind the header in the work Array
+	private void setHeader(byte direction, byte ins, short length) {
+		Util.arrayFillNonAtomic(work, (short)0, BLOCK_LENGTH, (byte)0x00);
+		work[0] = direction;
+		work[1] = ins;
+		Util.setShort(work, (short)2, counter[0]);
+		Util.setShort(work, (short)4, length);
+		
+		sessionIvCipher.init(sessionEncKey, Cipher.MODE_ENCRYPT);
+		sessionIvCipher.doFinal(work, (short)0, BLOCK_LENGTH, work, BLOCK_LENGTH);
+	}
+	
+	//Method for deriving one Session Key
+	private void deriveSessionKey(byte label, byte[] challenges, short offset, AESKey sessionKey) {
+		work[0] = label;
+		digest.reset();
+		digest.update(keyData, (short)0, (short)keyData.length);
+		digest.update(work, (short)0, (short)1);
+		digest.doFinal(challenges, offset, (short)(2 * CHALLENGE_LENGTH), work, (short)0);
+		sessionKey.setKey(work, (short)0);
+	}
+	
+	//Method for closing the session after wrong Data
+	// sw = Status word of the command
+	private void failSession(short sw) {
+		closeSession();
+		ISOException.throwIt(sw);
+	}
+
+	//Method for encrypting Data
+	// inBuff = Data which should be encrypted
+	// inOffset = Offset of Data
+	// length = Length of Data, multiple of 16
+	// outBuff = Array for encrypted Data, may be inBuff
+	// outOffset = Offset in outBuff
+	public short encrypt(byte[] inBuff, short inOffset, short length, byte[] outBuff, short outOffset) {
+		prepareKey();
+		return encryptCipher.doFinal(inBuff, inOffset, length, outBuff, outOffset);
+	}
+
+	//Method for decrypting Data
+	// Parameters like encrypt
+	public short decrypt(byte[] inBuff, short inOffset, short length, byte[] outBuff, short outOffset) {
+		prepareKey();
+		return decryptCipher.doFinal(inBuff, inOffset, length, outBuff, outOffset);
+	}
+}
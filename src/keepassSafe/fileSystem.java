@@ -22,16 +22,75 @@
 package keepassSafe;
 
 import javacard.framework.*;
+import javacard.security.MessageDigest;
 
 //Filesystem Class
 //Creating/Writing/Reading and Deleting Files
 public class fileSystem {
 	
+	//Status word for a File ID whose low byte is used by another File
+	public static final short SW_FILE_ID_CONFLICT = (short)0x6A89;
+	
 	//Create Arrays for Files
 	private Object[] FileList;
     private short[]  FileSizesList;
+    private short[]  FileIDList;
     private byte[] tempData;
     
+    //Directory from low byte of File ID to Slot + 1, 0 = no File
+    //Low bytes of all File IDs are unique, addFile refuses an ID whose low byte is used
+    private byte[] slotIndex;
+    //Stack of free Slots
+    private byte[] freeSlots;
+    private short freeCount;
+    
+    //Arena for all Files, null when every File has its own Array
+    //Files are extents in the Arena: start in FileBaseList, reserved length in FileCapacityList
+    private byte[] arena;
+    private short[] FileBaseList;
+    private short[] FileCapacityList;
+    private short arenaTop;
+    
+    //Move of one File during compaction: Slot + 1, old start, new start, bytes moved
+    //Slot 0 = no move running
+    private static final short MOVE_SLOT = (short)0;
+    private static final short MOVE_FROM = (short)1;
+    private static final short MOVE_TO   = (short)2;
+    private static final short MOVE_DONE = (short)3;
+    private short[] moveState;
+    
+    //True when a deleted or replaced File Array waits for the Garbage Collector
+    private boolean garbage;
+    
+    //Maximum length of one read
+    public static final short MAX_READ_LENGTH = (short)0x00FA;
+    
+    //Page Buffer for buffered writes
+    //Holds one page of one File until another page is written or it is flushed
+    public static final short PAGE_SIZE = (short)0x0040;
+    private static final short PAGE_FILE  = (short)0;
+    private static final short PAGE_START = (short)1;
+    private static final short PAGE_DIRTY = (short)2;
+    private byte[] page;
+    private short[] pageState;
+    
+    //Block Digests for Data Files
+    //Stored behind the File Data: one valid Flag per block, then one Digest per block
+    public static final short HASH_BLOCK_SIZE = (short)0x0100;
+    public static final short DIGEST_LENGTH   = (short)0x0008;
+    private static final short HASH_RECORD_LENGTH = (short)(DIGEST_LENGTH + 1);
+    private MessageDigest hash;
+    //Usage Statistics for read and written bytes
+    private usageStats stats;
+    
+    //Generation of the Filesystem and of every File, with the Digest of every File
+    //File state = ID + Generation + Size + Digest
+    public static final short FILE_STATE_LENGTH = (short)(6 + DIGEST_LENGTH);
+    private short generation;
+    private short[] FileGenerationList;
+    private short[] FileDigestGenerationList;
+    private byte[] FileDigestList;
+    
     //Create Numbers for Files
     public static final short keepassPW       = (short)0x0100;
     public static final short keepassFileName = (short)0x0101;
@@ -41,26 +100,247 @@ public class fileSystem {
     private static final short keepassName_Index    = (short)0x0001;
     private static final short keepassData_Index1   = (short)0x0002;
     private static final short keepassData_Index2   = (short)0x0003;
+    private static final short reserved_Slots       = (short)0x0004;
     
 	//Create Filesystem
-	public fileSystem() {
-		tempData = JCSystem.makeTransientByteArray((short)0x00FA, JCSystem.CLEAR_ON_DESELECT);
-		FileList = new Object[(short)4];
-        FileSizesList = new short[(short)4];
+	// slots = Number of Files, first four are reserved for the KeePass Files
+	// arenaSize = Size of the Arena for all Files, 0 for one Array per File
+	// hash = SHA-256 Digest for Block Digests
+	// stats = Usage Statistics for read and written bytes
+	public fileSystem(short slots, short arenaSize, MessageDigest hash, usageStats stats) {
+		if(slots < reserved_Slots || slots > (short)0xFF) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		
+		tempData = JCSystem.makeTransientByteArray(MAX_READ_LENGTH, JCSystem.CLEAR_ON_DESELECT);
+		page = JCSystem.makeTransientByteArray(PAGE_SIZE, JCSystem.CLEAR_ON_DESELECT);
+		pageState = JCSystem.makeTransientShortArray((short)3, JCSystem.CLEAR_ON_DESELECT);
+		this.hash = hash;
+		this.stats = stats;
+		FileList = new Object[slots];
+        FileSizesList = new short[slots];
+        FileIDList = new short[slots];
+        slotIndex = new byte[(short)0x100];
+        freeSlots = new byte[slots];
+        FileCapacityList = new short[slots];
+        FileGenerationList = new short[slots];
+        FileDigestGenerationList = new short[slots];
+        FileDigestList = new byte[(short)(slots * DIGEST_LENGTH)];
+        
+        //Reserve Arena one time
+        if(arenaSize > 0) {
+	        arena = new byte[arenaSize];
+	        FileBaseList = new short[slots];
+	        moveState = new short[4];
+	        arenaTop = (short)0;
+        }
+        
+        //Register KeePass Files
+        registerFile(keepassPW, keepassPW_Index);
+        registerFile(keepassFileName, keepassName_Index);
+        registerFile(keepassData1, keepassData_Index1);
+        registerFile(keepassData2, keepassData_Index2);
+        
+        //All other Slots are free
+        freeCount = (short)0;
+        for(short i = (short)(slots - 1); i >= reserved_Slots; i--) {
+	        freeSlots[freeCount++] = (byte)i;
+        }
 	}
 	
 	//Method for Creating a File with specified size
+	//Files with a new ID get a free Slot
 	public void createFile(short fileID, short fileSize) {
+		//Check size before Slots or Arena change
+		if(fileSize < 0 || (arena != null && fileSize > (short)arena.length)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		
+		//Write buffered Data before Files change
+		flushPage();
+		
 		//Get Index of File
 		short index = getFileIndex(fileID);
 		
-		//Check if File exists
-		if(FileList[index] == null) {
-			//Create File
-			FileList[index] = new byte[fileSize];
+		//Get new Slot for unknown File
+		boolean added = false;
+		if(index == (short)-1) {
+			index = addFile(fileID);
+			added = true;
+		}
+		
+		//Slot of a new File is given back when there is no Storage for it
+		short blocks = (short)0;
+		try {
+			//Get size with Block Digests
+			short storageSize = fileSize;
+			if(isHashed(index)) {
+				blocks = getBlockCount(fileSize);
+				if(fileSize > (short)((short)0x7FFF - (short)(blocks * HASH_RECORD_LENGTH))) {
+					ISOException.throwIt(ISO7816.SW_FILE_FULL);
+				}
+				storageSize += (short)(blocks * HASH_RECORD_LENGTH);
+			}
+			
+			//Check if File exists and is large enough
+			if(FileList[index] != null && FileCapacityList[index] < storageSize) {
+				releaseFile(index);
+			}
+			if(FileList[index] == null) {
+				//Create File
+				allocateFile(index, storageSize);
+			}
+		} catch(CardRuntimeException e) {
+			if(added) {
+				freeSlot(fileID, index);
+			}
+			throw e;
 		}
+		
 		//Add Filesize 
 		FileSizesList[index] = fileSize;
+		
+		//No Block Digest is valid
+		if(blocks > 0) {
+			Util.arrayFillNonAtomic(getFile(fileID), (short)(getFileBase(fileID) + fileSize), blocks, (byte)0x00);
+		}
+		nextGeneration(fileID);
+	}
+	
+	//Method for getting Storage for a File
+	private void allocateFile(short index, short fileSize) {
+		if(arena == null) {
+			FileList[index] = new byte[fileSize];
+			FileCapacityList[index] = fileSize;
+			return;
+		}
+		
+		//Take extent from the end of the Arena
+		//Move Files together when the end is too small
+		if(fileSize > (short)(arena.length - arenaTop)) {
+			compactArena();
+			if(fileSize > (short)(arena.length - arenaTop)) {
+				ISOException.throwIt(ISO7816.SW_FILE_FULL);
+			}
+		}
+		
+		//Extent may hold Data of a deleted or moved File
+		Util.arrayFillNonAtomic(arena, arenaTop, fileSize, (byte)0x00);
+		
+		JCSystem.beginTransaction();
+		FileBaseList[index] = arenaTop;
+		FileCapacityList[index] = fileSize;
+		FileList[index] = arena;
+		arenaTop += fileSize;
+		JCSystem.commitTransaction();
+	}
+	
+	//Method for giving back the Storage of a File
+	//Data and Block Digests are wiped first, so no later File can read them
+	private void releaseFile(short index) {
+		if(arena != null) {
+			Util.arrayFillNonAtomic(arena, FileBaseList[index], FileCapacityList[index], (byte)0x00);
+		} else {
+			Util.arrayFillNonAtomic((byte[]) FileList[index], (short)0, FileCapacityList[index], (byte)0x00);
+		}
+		
+		JCSystem.beginTransaction();
+		//Last extent of the Arena is given back at once
+		//Other extents are given back on the next compaction
+		if(arena != null && (short)(FileBaseList[index] + FileCapacityList[index]) == arenaTop) {
+			arenaTop = FileBaseList[index];
+		}
+		if(arena == null) {
+			garbage = true;
+		}
+		FileList[index] = null;
+		FileCapacityList[index] = (short)0;
+		JCSystem.commitTransaction();
+	}
+	
+	//Method for moving all Files to the start of the Arena
+	//Files are moved in order of start and Slot, so every File moves down
+	//Only runs when the end of the Arena is too small, allocation itself stays O(1)
+	//Finding the next File scans all Slots, this is O(n^2) for n Slots
+	private void compactArena() {
+		short top = (short)0;
+		short lastBase = (short)-1;
+		short lastSlot = (short)-1;
+		
+		while(true) {
+			//Find File with the lowest start and Slot after the last moved File
+			//Files of size 0 may share their start with another File
+			short next = (short)-1;
+			for(short i = 0; i < (short)FileList.length; i++) {
+				if(FileList[i] == null) {
+					continue;
+				}
+				short base = FileBaseList[i];
+				if((base > lastBase || (base == lastBase && i > lastSlot))
+						&& (next == (short)-1 || base < FileBaseList[next])) {
+					next = i;
+				}
+			}
+			if(next == (short)-1) {
+				break;
+			}
+			lastBase = FileBaseList[next];
+			lastSlot = next;
+			
+			//Move File and save new start
+			if(lastBase != top) {
+				moveFile(next, top);
+			}
+			top += FileCapacityList[next];
+		}
+		
+		arenaTop = top;
+	}
+	
+	//Method for moving a File down in the Arena
+	//The move is saved first, so finishMove can complete it after a tear
+	private void moveFile(short index, short to) {
+		JCSystem.beginTransaction();
+		moveState[MOVE_SLOT] = (short)(index + 1);
+		moveState[MOVE_FROM] = FileBaseList[index];
+		moveState[MOVE_TO] = to;
+		moveState[MOVE_DONE] = (short)0;
+		JCSystem.commitTransaction();
+		
+		finishMove();
+	}
+	
+	//Method for completing a saved move of a File
+	//Called on select, before any File is used
+	//Parts are not longer than the distance of the move, so a part never overwrites Data which is not moved yet
+	//A part cut off by a tear is copied again from the saved progress
+	public void finishMove() {
+		if(moveState == null || moveState[MOVE_SLOT] == 0) {
+			return;
+		}
+		
+		short index = (short)(moveState[MOVE_SLOT] - 1);
+		short from = moveState[MOVE_FROM];
+		short to = moveState[MOVE_TO];
+		short length = FileCapacityList[index];
+		short part = (short)(from - to);
+		short done = moveState[MOVE_DONE];
+		
+		while(done < length) {
+			short count = (short)(length - done);
+			if(count > part) {
+				count = part;
+			}
+			Util.arrayCopyNonAtomic(arena, (short)(from + done), arena, (short)(to + done), count);
+			done += count;
+			moveState[MOVE_DONE] = done;
+		}
+		
+		//New start and end of the move in one step
+		JCSystem.beginTransaction();
+		FileBaseList[index] = to;
+		moveState[MOVE_SLOT] = (short)0;
+		JCSystem.commitTransaction();
 	}
 	
 	//Method for deleting a File
@@ -68,14 +348,48 @@ public class fileSystem {
 		//Get Index of FIle
 		short index = getFileIndex(fileID);
 		
+		if(index == (short)-1) {
+			ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+		}
+		
+		//Buffered Data of this File is not needed anymore
+		if(pageState[PAGE_DIRTY] != 0 && pageState[PAGE_FILE] == fileID) {
+			pageState[PAGE_DIRTY] = (short)0;
+		}
+		
 		//Check if File exists
 		if(FileList[index] != null) {
 			//Delete File
-			FileList[index] = null;
+			releaseFile(index);
 		}
 		
 		//delete Filesize
 		FileSizesList[index] = (short)0;
+		nextGeneration(fileID);
+		
+		//Free Slot of not reserved Files
+		if(index >= reserved_Slots) {
+			freeSlot(fileID, index);
+		}
+	}
+	
+	//Method for giving back the Slot of a File
+	private void freeSlot(short fileID, short index) {
+		JCSystem.beginTransaction();
+		slotIndex[(short)(fileID & 0xFF)] = (byte)0;
+		FileIDList[index] = (short)0;
+		freeSlots[freeCount] = (byte)index;
+		freeCount++;
+		JCSystem.commitTransaction();
+	}
+	
+	//Method for deleting all Files
+	public void deleteAllFiles() {
+		for(short i = 0; i < (short)FileList.length; i++) {
+			if(FileIDList[i] != (short)0) {
+				deleteFile(FileIDList[i]);
+			}
+		}
 	}
 	
 	//Method for writing Data to File
@@ -89,12 +403,89 @@ public class fileSystem {
 		short selFileSize = getFileSize(fileID);
 
 		//Check if File is full
-        if (selFileSize < (short)(fileOffset + dataLength)) {
+		//Negative Offsets and Lengths are rejected, the sum may not overflow
+        if (fileOffset < 0 || dataLength < 0 || fileOffset > (short)(selFileSize - dataLength)) {
 	        ISOException.throwIt(ISO7816.SW_FILE_FULL); 
         }
             
-        //Write Data to File
-        Util.arrayCopy(fileData, dataOffset, getFile(fileID), fileOffset, dataLength);
+        //Write buffered Data first, so it does not overwrite this Data later
+        flushPage();
+        
+        //Write Data to File, Block Digests are invalid before
+        nextGeneration(fileID);
+        invalidateBlocks(fileID, fileOffset, dataLength);
+        Util.arrayCopy(fileData, dataOffset, getFile(fileID), (short)(getFileBase(fileID) + fileOffset), dataLength);
+        stats.add(usageStats.BYTES_WRITTEN, dataLength);
+	}
+	
+	//Method for writing Data to File through the Page Buffer
+	//Data is written to the File when another page is written, the page is full or flushPage is called
+	// Parameters like writeDataToFile
+	public void writeBufferedToFile(short fileID, short fileOffset, byte[] fileData, short dataOffset, short dataLength) {
+		//Check if File is full
+        if (fileOffset < 0 || dataLength < 0 || fileOffset > (short)(getFileSize(fileID) - dataLength)) {
+	        ISOException.throwIt(ISO7816.SW_FILE_FULL); 
+        }
+        
+        while(dataLength > 0) {
+	        short start = (short)(fileOffset & (short)~(PAGE_SIZE - 1));
+	        short inPage = (short)(fileOffset - start);
+	        short part = (short)(PAGE_SIZE - inPage);
+	        if(part > dataLength) {
+		        part = dataLength;
+	        }
+	        
+	        //Load page when Data is for another page
+	        if(pageState[PAGE_DIRTY] == 0 || pageState[PAGE_FILE] != fileID || pageState[PAGE_START] != start) {
+		        flushPage();
+		        loadPage(fileID, start, part == PAGE_SIZE);
+		        nextGeneration(fileID);
+	        }
+	        
+	        //Write Data to page
+	        Util.arrayCopyNonAtomic(fileData, dataOffset, page, inPage, part);
+	        pageState[PAGE_DIRTY] = (short)1;
+	        
+	        //Full page goes to the File at once
+	        if((short)(inPage + part) == PAGE_SIZE) {
+		        flushPage();
+	        }
+	        
+	        fileOffset += part;
+	        dataOffset += part;
+	        dataLength -= part;
+        }
+	}
+	
+	//Method for writing the Page Buffer to its File
+	public void flushPage() {
+		if(pageState[PAGE_DIRTY] == 0) {
+			return;
+		}
+		
+		short fileID = pageState[PAGE_FILE];
+		short start = pageState[PAGE_START];
+		short length = getPageLength(fileID, start);
+		invalidateBlocks(fileID, start, length);
+		Util.arrayCopyNonAtomic(page, (short)0, getFile(fileID), (short)(getFileBase(fileID) + start), length);
+		pageState[PAGE_DIRTY] = (short)0;
+		stats.add(usageStats.BYTES_WRITTEN, length);
+	}
+	
+	//Method for loading a page of a File to the Page Buffer
+	// overwrite = true when the whole page is written, nothing is read
+	private void loadPage(short fileID, short start, boolean overwrite) {
+		if(!overwrite) {
+			Util.arrayCopyNonAtomic(getFile(fileID), (short)(getFileBase(fileID) + start), page, (short)0, getPageLength(fileID, start));
+		}
+		pageState[PAGE_FILE] = fileID;
+		pageState[PAGE_START] = start;
+	}
+	
+	//Method for getting the length of a page, last page of a File may be shorter
+	private short getPageLength(short fileID, short start) {
+		short length = (short)(getFileSize(fileID) - start);
+		return length > PAGE_SIZE ? PAGE_SIZE : length;
 	}
 	
 	//Method for reading Data from File
@@ -105,28 +496,89 @@ public class fileSystem {
 		//Get File size
 		final short selFileSize = getFileSize(fileID);
 		
+		//Check if Data is inside of the File
+		if (length > MAX_READ_LENGTH || selFileSize < (short)(fileOffset + length)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		
 		//Read Data From File and return Data
-		Util.arrayCopyNonAtomic(getFile(fileID), fileOffset, tempData, (short)0, length);
+		flushPage();
+		Util.arrayCopyNonAtomic(getFile(fileID), (short)(getFileBase(fileID) + fileOffset), tempData, (short)0, length);
+		stats.add(usageStats.BYTES_READ, length);
 		return (byte[])tempData;
 	}
 	
+	//Method for copying Data from File to an Array
+	// fileID = ID for File
+	// fileOffset = Offset where to start Reading
+	// out = Array for the Data
+	// outOffset = Offset in out
+	// length = Length 
+	public void copyDataFromFile(short fileID, short fileOffset, byte[] out, short outOffset, short length) {
+		//Check if Data is inside of the File
+		if (fileOffset < 0 || length < 0 || fileOffset > (short)(getFileSize(fileID) - length)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		
+		flushPage();
+		Util.arrayCopyNonAtomic(getFile(fileID), (short)(getFileBase(fileID) + fileOffset), out, outOffset, length);
+		stats.add(usageStats.BYTES_READ, length);
+	}
+	
+	//Method for sending Data from File without copying it
+	//Outgoing length must be set by the caller
+	// apdu = APDU for sending
+	// fileID = ID for File
+	// fileOffset = Offset where to start Reading
+	// length = Length 
+	public void sendDataFromFile(APDU apdu, short fileID, short fileOffset, short length) {
+		//Check if Data is inside of the File
+		if (fileOffset < 0 || length < 0 || fileOffset > (short)(getFileSize(fileID) - length)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		
+		//Send Data from File Array
+		flushPage();
+		apdu.sendBytesLong(getFile(fileID), (short)(getFileBase(fileID) + fileOffset), length);
+		stats.add(usageStats.BYTES_READ, length);
+	}
+	
 	//Method for getting the File Index Number
+	//Low byte of the ID selects the Slot, full ID must match
 	private short getFileIndex(short fileID) {
-		if(fileID == keepassData1) {
-			return keepassData_Index1;
-			
-		} else if (fileID == keepassData2) {
-			return keepassData_Index2;
-			
-		} else if (fileID == keepassPW) {
-			return keepassPW_Index;
-			
-		} else if (fileID == keepassFileName) {
-			return keepassName_Index;
-			
-		} else {
+		short index = (short)((slotIndex[(short)(fileID & 0xFF)] & 0xFF) - 1);
+		
+		if(index == (short)-1 || FileIDList[index] != fileID) {
 			return (short)-1;
 		}
+		
+		return index;
+	}
+	
+	//Method for adding a File to a free Slot
+	//Returns index of the Slot
+	private short addFile(short fileID) {
+		//Check if low byte of the ID is not used and a Slot is free
+		if(slotIndex[(short)(fileID & 0xFF)] != (byte)0) {
+			ISOException.throwIt(SW_FILE_ID_CONFLICT);
+		}
+		if(freeCount == 0) {
+			ISOException.throwIt(ISO7816.SW_FILE_FULL);
+		}
+		
+		JCSystem.beginTransaction();
+		freeCount--;
+		short index = (short)(freeSlots[freeCount] & 0xFF);
+		registerFile(fileID, index);
+		JCSystem.commitTransaction();
+		
+		return index;
+	}
+	
+	//Method for registering a File ID for a Slot
+	private void registerFile(short fileID, short index) {
+		FileIDList[index] = fileID;
+		slotIndex[(short)(fileID & 0xFF)] = (byte)(index + 1);
 	}
 	
 	//Method for getting File
@@ -140,6 +592,183 @@ public class fileSystem {
 		return (byte[]) FileList[index];
 	}
 	
+	//Method for copying Block Digests of a File
+	//Digests of changed blocks are computed again
+	// fileID = ID for File
+	// firstBlock = Number of the first block
+	// count = Number of blocks
+	// out = Array for the Digests
+	// outOffset = Offset in out
+	//Returns length of the Digests
+	public short copyBlockDigests(short fileID, short firstBlock, short count, byte[] out, short outOffset) {
+		short index = getFileIndex(fileID);
+		
+		if(index == (short)-1 || !isHashed(index) || FileList[index] == null) {
+			ISOException.throwIt(ISO7816.SW_FILE_NOT_FOUND);
+		}
+		
+		short size = FileSizesList[index];
+		short blocks = getBlockCount(size);
+		if(firstBlock < 0 || count < 0 || firstBlock > (short)(blocks - count)) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		
+		//Write buffered Data first
+		flushPage();
+		
+		//Digests of all blocks are one after another
+		short digests = updateBlockDigests(fileID, firstBlock, count);
+		Util.arrayCopyNonAtomic(getFile(fileID), (short)(digests + (short)(firstBlock * DIGEST_LENGTH)), out, outOffset, (short)(count * DIGEST_LENGTH));
+		
+		return (short)(count * DIGEST_LENGTH);
+	}
+	
+	//Method for computing the Digests of changed blocks and keeping them
+	//Returns offset of the Digest of block 0 in the File Array
+	private short updateBlockDigests(short fileID, short firstBlock, short count) {
+		byte[] file = getFile(fileID);
+		short size = getFileSize(fileID);
+		short base = getFileBase(fileID);
+		short flags = (short)(base + size);
+		short digests = (short)(flags + getBlockCount(size));
+		
+		for(short i = firstBlock; i < (short)(firstBlock + count); i++) {
+			if(file[(short)(flags + i)] == (byte)0x00) {
+				short start = (short)(i * HASH_BLOCK_SIZE);
+				short length = (short)(size - start);
+				if(length > HASH_BLOCK_SIZE) {
+					length = HASH_BLOCK_SIZE;
+				}
+				
+				hash.reset();
+				hash.doFinal(file, (short)(base + start), length, tempData, (short)0);
+				Util.arrayCopy(tempData, (short)0, file, (short)(digests + (short)(i * DIGEST_LENGTH)), DIGEST_LENGTH);
+				file[(short)(flags + i)] = (byte)0x01;
+			}
+		}
+		
+		return digests;
+	}
+	
+	//Method for getting the Generation of the Filesystem
+	//Changes with every create, delete and write
+	public short getGeneration() {
+		return generation;
+	}
+	
+	//Method for copying the state of all Files
+	//For every File: ID + Generation + Size + Digest
+	//Password File is left out
+	//Returns length of the Data
+	public short copyFileStates(byte[] out, short outOffset) {
+		//Write buffered Data first
+		flushPage();
+		
+		short start = outOffset;
+		for(short i = 0; i < (short)FileList.length; i++) {
+			if(FileList[i] == null || i == keepassPW_Index) {
+				continue;
+			}
+			
+			Util.setShort(out, outOffset, FileIDList[i]);
+			Util.setShort(out, (short)(outOffset + 2), FileGenerationList[i]);
+			Util.setShort(out, (short)(outOffset + 4), FileSizesList[i]);
+			copyFileDigest(i, out, (short)(outOffset + 6));
+			outOffset += FILE_STATE_LENGTH;
+		}
+		
+		return (short)(outOffset - start);
+	}
+	
+	//Method for copying the Digest of a File
+	//Digest is computed again only when the File changed
+	private void copyFileDigest(short index, byte[] out, short outOffset) {
+		short digest = (short)(index * DIGEST_LENGTH);
+		
+		if(FileDigestGenerationList[index] != FileGenerationList[index]) {
+			short fileID = FileIDList[index];
+			short size = FileSizesList[index];
+			
+			//Data Files: Digest over the Block Digests
+			//Other Files: Digest over the Data
+			hash.reset();
+			if(isHashed(index)) {
+				short blocks = getBlockCount(size);
+				short digests = updateBlockDigests(fileID, (short)0, blocks);
+				hash.doFinal(getFile(fileID), digests, (short)(blocks * DIGEST_LENGTH), tempData, (short)0);
+			} else {
+				hash.doFinal(getFile(fileID), getFileBase(fileID), size, tempData, (short)0);
+			}
+			
+			JCSystem.beginTransaction();
+			Util.arrayCopy(tempData, (short)0, FileDigestList, digest, DIGEST_LENGTH);
+			FileDigestGenerationList[index] = FileGenerationList[index];
+			JCSystem.commitTransaction();
+		}
+		
+		Util.arrayCopyNonAtomic(FileDigestList, digest, out, outOffset, DIGEST_LENGTH);
+	}
+	
+	//Method for counting up the Generation of the Filesystem and a File
+	//Generation 0 is never used, so a new File never matches an old Digest
+	private void nextGeneration(short fileID) {
+		short index = getFileIndex(fileID);
+		
+		generation++;
+		if(generation == 0) {
+			generation = (short)1;
+		}
+		FileGenerationList[index] = generation;
+	}
+	
+	//Method for getting the number of hash blocks of a File
+	public short getBlockCount(short fileSize) {
+		short blocks = (short)(fileSize / HASH_BLOCK_SIZE);
+		if((short)(fileSize % HASH_BLOCK_SIZE) != 0) {
+			blocks++;
+		}
+		
+		return blocks;
+	}
+	
+	//Method for marking the Block Digests of changed Data as invalid
+	private void invalidateBlocks(short fileID, short fileOffset, short length) {
+		short index = getFileIndex(fileID);
+		if(!isHashed(index) || length == 0) {
+			return;
+		}
+		
+		short first = (short)(fileOffset / HASH_BLOCK_SIZE);
+		short last = (short)((short)(fileOffset + length - 1) / HASH_BLOCK_SIZE);
+		short flags = (short)(getFileBase(fileID) + FileSizesList[index]);
+		Util.arrayFillNonAtomic(getFile(fileID), (short)(flags + first), (short)(last - first + 1), (byte)0x00);
+	}
+	
+	//Method for checking if a File has Block Digests
+	//All Data Files have them, Password and File Name not
+	private boolean isHashed(short index) {
+		return index >= keepassData_Index1;
+	}
+	
+	//Method for checking if the Garbage Collector has something to do
+	public boolean hasGarbage() {
+		return garbage;
+	}
+	
+	//Method for resetting the garbage Flag after the Garbage Collector was requested
+	public void clearGarbage() {
+		garbage = false;
+	}
+	
+	//Method for getting the start of a File in its Array
+	private short getFileBase(short fileID) {
+		if(arena == null) {
+			return (short)0;
+		}
+		
+		return FileBaseList[getFileIndex(fileID)];
+	}
+	
 	//Method for getting File size
 	public short getFileSize(short fileID) {
 		short index = getFileIndex(fileID);
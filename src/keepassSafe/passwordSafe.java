@@ -26,11 +26,13 @@ import javacard.framework.*;
 import javacard.security.RandomData;
 import javacard.security.*;
 import javacardx.crypto.*;
+import javacardx.apdu.ExtendedLength;
 
-public class passwordSafe extends Applet
+public class passwordSafe extends Applet implements ExtendedLength
 {
 	//Class Byte
 	final static byte CLA_NUMBER = (byte) 0x80;
+	final static byte CLA_CHAINING = (byte) 0x90;
     
     //INS Bytes 
 	final static byte INS_INIT       = (byte) 0x20;
@@ -38,6 +40,7 @@ public class passwordSafe extends Applet
 	final static byte INS_CHANGE_PIN = (byte) 0x22;
 	final static byte INS_PIN_RESET  = (byte) 0x23;
 	final static byte INS_CARD_RESET  = (byte) 0x24;
+	final static byte INS_OPEN_SESSION = (byte) 0x25;
 	
 	final static byte INS_PW_SET  = (byte) 0x30;
 	final static byte INS_PW_GET  = (byte) 0x31;
@@ -49,6 +52,17 @@ public class passwordSafe extends Applet
     final static byte INS_DELETE_FILE   = (byte) 0x43;
     final static byte INS_FILE_SIZE     = (byte) 0x44;
     final static byte INS_GET_FILE_NAME = (byte) 0x45;
+    final static byte INS_FLUSH         = (byte) 0x46;
+    final static byte INS_GET_MANIFEST  = (byte) 0x47;
+    final static byte INS_GET_FILE_STATE = (byte) 0x48;
+    
+    final static byte INS_BATCH         = (byte) 0x50;
+    final static byte INS_COLLECT       = (byte) 0x51;
+    final static byte INS_STATS         = (byte) 0x53;
+    final static byte INS_CAPABILITIES  = (byte) 0x54;
+    final static byte INS_STATUS_POLICY = (byte) 0x55;
+    
+    final static byte INS_GET_RESPONSE  = (byte) 0xC0;
     
     //Variables for the PIN
     private final static byte PIN_MAX_TRIES  = (byte) 3;
@@ -58,6 +72,70 @@ public class passwordSafe extends Applet
     private final static byte PUK_MAX_TRIES = (byte) 3;
     private final static byte PUK_LENGTH    = (byte) 8;
     
+    //Variables for encrypted Data
+    //P2 bit for length framed encrypted Data: [Length][Data][Length][Data]...
+    private final static byte P2_FRAMED    = (byte) 0x80;
+    private final static short BLOCK_SIZE   = (short) 16;
+    private final static short SCRATCH_SIZE = (short) 48;
+    
+    //Variables for streaming reads
+    //P1 for reading a whole File with GET RESPONSE
+    private final static byte P1_READ_STREAM = (byte) 0x04;
+    private final static short STREAM_FILE      = (short) 0;
+    private final static short STREAM_OFFSET    = (short) 1;
+    private final static short STREAM_REMAINING = (short) 2;
+    
+    //P1 and P2 for reading both Data Files in one response
+    private final static byte P1_READ_BOTH = (byte) 0x05;
+    private final static byte P2_BOTH_FILES = (byte) 0x03;
+    private final static short BOTH_HEADER_LENGTH = (short) 4;
+    
+    //P1 for writing through the Page Buffer of the Filesystem
+    private final static byte P1_WRITE_BUFFERED = (byte) 0x04;
+    //P1 for reading and writing with Secure Messaging
+    private final static byte P1_SECURE = (byte) 0x06;
+    
+    //Variables for chained writes
+    private final static short CHAIN_ACTIVE = (short) 0;
+    private final static short CHAIN_FILE   = (short) 1;
+    private final static short CHAIN_OFFSET = (short) 2;
+    
+    //Variables for the Filesystem
+    //P2 from 0x20 to 0x7F selects an additional File with ID 0x02xx
+    //Number of Slots when the install parameters give none
+    private final static short DEFAULT_FILE_SLOTS = (short) 16;
+    private final static byte  P2_EXTRA_FILE_MIN = (byte) 0x20;
+    private final static short EXTRA_FILE_BASE   = (short) 0x0200;
+    
+    //Variables for the Capabilities
+    //Flags: extended length, chaining for UPDATE_BINARY, streaming read, Secure Messaging, read of both Files
+    private final static byte CAPABILITIES_VERSION = (byte) 0x01;
+    private final static short CAPABILITIES_LENGTH = (short) 13;
+    private final static byte CAP_EXTENDED_LENGTH  = (byte) 0x01;
+    private final static byte CAP_CHAINING         = (byte) 0x02;
+    private final static byte CAP_READ_STREAM      = (byte) 0x04;
+    private final static byte CAP_SECURE           = (byte) 0x08;
+    private final static byte CAP_READ_BOTH        = (byte) 0x10;
+    //Largest Lc of a short APDU
+    private final static short SHORT_MAX_LENGTH    = (short) 0xFF;
+    
+    //Variables for the Status on SELECT
+    //Items are written behind room for State, GC Byte and both TLV headers
+    private final static short STATUS_ITEMS     = (short) 8;
+    private final static short STATUS_MAX_LENGTH = (short) 0x0100;
+    private final static byte TAG_FCI          = (byte) 0x6F;
+    private final static byte TAG_PROPRIETARY  = (byte) 0xA5;
+    private final static byte TAG_STATE        = (byte) 0x80;
+    private final static byte TAG_TRIES        = (byte) 0x81;
+    private final static byte TAG_MASTER_PW    = (byte) 0x82;
+    private final static byte TAG_COLLECTED    = (byte) 0x83;
+    private final static byte TAG_FILE_SIZES   = (byte) 0x84;
+    private final static byte TAG_FILE_NAME    = (byte) 0x85;
+    
+    //Values for the Status Policy
+    private static final byte STATUS_POLICY_HIDDEN = (byte) 0x00;
+    private static final byte STATUS_POLICY_PUBLIC = (byte) 0x01;
+    
     //Values for the State
     private static final byte STATE_INIT           = (byte) 0x00; 
     private static final byte STATE_SECURE_NO_DATA = (byte) 0x01; 
@@ -78,24 +156,32 @@ public class passwordSafe extends Applet
     private byte state;
     private byte masterPW;
     private byte masterPWlength;
+    private byte statusPolicy;
     
     //Variables for PIN, PUK, Filesystem and RandomData
     private short[] offset_data;
     private byte[] temp_data;
+    private byte[] scratch;
+    private short[] stream;
+    private short[] chain;
+    private boolean[] collected;
     private OwnerPIN pin = null;
     private OwnerPIN puk = null;
 	private RandomData randomKey;
 	private fileSystem myfile;
+	private cryptoEngine crypto;
+	private usageStats stats;
 
 	private byte[] aesKey;
 	
 	//Method which is called one time Applet is beeing installed
+	//Install parameters: optional Arena size (2 Bytes) and number of File Slots (1 Byte) for the Filesystem
 	public static void install(byte[] buffer, short offset, byte length) {
-        new passwordSafe(); 
+        new passwordSafe(buffer, offset); 
     } 
     
     //Method which is called one Time on first start
-    private passwordSafe() {
+    private passwordSafe(byte[] buffer, short offset) {
     	
     	//Initialize PIN and PUK
 	    pin = new OwnerPIN(PIN_MAX_TRIES, PIN_MAX_LENGTH);
@@ -105,14 +191,32 @@ public class passwordSafe extends Applet
         state = STATE_INIT;
         masterPW = MASTER_PW_STORED_NO;
         masterPWlength = (byte)0; 
+        statusPolicy = STATUS_POLICY_HIDDEN;
 
 		aesKey = new byte[32];
 		
+		//Create instance of Crypto Engine Class
+		crypto = new cryptoEngine(aesKey);
+		
 		//Create RAM Array
         temp_data = JCSystem.makeTransientByteArray((short)2, JCSystem.CLEAR_ON_DESELECT);
+        scratch = JCSystem.makeTransientByteArray(SCRATCH_SIZE, JCSystem.CLEAR_ON_DESELECT);
+        stream = JCSystem.makeTransientShortArray((short)3, JCSystem.CLEAR_ON_DESELECT);
+        chain = JCSystem.makeTransientShortArray((short)3, JCSystem.CLEAR_ON_DESELECT);
+        collected = JCSystem.makeTransientBooleanArray((short)1, JCSystem.CLEAR_ON_DESELECT);
+        
+        //Create instance of Usage Statistics Class with all INS
+        stats = new usageStats(new byte[] {
+        	INS_INIT, INS_PIN_VERIFY, INS_CHANGE_PIN, INS_PIN_RESET, INS_CARD_RESET, INS_OPEN_SESSION,
+        	INS_PW_SET, INS_PW_GET, INS_PW_DEL,
+        	INS_CREATE_FILE, INS_UPDATE_BINARY, INS_READ_BINARY, INS_DELETE_FILE, INS_FILE_SIZE,
+        	INS_GET_FILE_NAME, INS_FLUSH, INS_GET_MANIFEST, INS_GET_FILE_STATE,
+        	INS_BATCH, INS_COLLECT, INS_STATS, INS_CAPABILITIES, INS_STATUS_POLICY,
+        	INS_GET_RESPONSE
+        });
         
         //Create instance of Filesystem Class
-        myfile = new fileSystem();
+        myfile = new fileSystem(getFileSlots(buffer, offset), getArenaSize(buffer, offset), crypto.getDigest(), stats);
         
         //Init Variable for Random Data
         randomKey = RandomData.getInstance(RandomData.ALG_SECURE_RANDOM);
@@ -121,26 +225,64 @@ public class passwordSafe extends Applet
         register(); 
     }
 
+	//Method for getting the Offset of the Applet Data in the install parameters
+	//Parameters = [Length][AID][Length][Control][Length][Arena size][File Slots]
+	private static short getAppDataOffset(byte[] buffer, short offset) {
+		//Skip AID and Control Info
+		offset += (short)(buffer[offset] + 1);
+		offset += (short)(buffer[offset] + 1);
+		return offset;
+	}
+	
+	//Method for getting the Arena size from the install parameters
+	//Returns 0 when no Arena size is given
+	private static short getArenaSize(byte[] buffer, short offset) {
+		offset = getAppDataOffset(buffer, offset);
+		if(buffer[offset] < (byte)2) {
+			return (short)0;
+		}
+		
+		return Util.getShort(buffer, (short)(offset + 1));
+	}
+	
+	//Method for getting the number of File Slots from the install parameters
+	//Returns the default when no number is given, the Filesystem checks the range
+	private static short getFileSlots(byte[] buffer, short offset) {
+		offset = getAppDataOffset(buffer, offset);
+		if(buffer[offset] < (byte)3) {
+			return DEFAULT_FILE_SLOTS;
+		}
+		
+		return (short)(buffer[(short)(offset + 3)] & 0xFF);
+	}
+	
 	//Method called when deselected
-	//Resets entered PIN and PUK
+	//Resets entered PIN and PUK first, then writes the open page and the due Usage Statistics
     public void deselect() { 
         pin.reset();
         puk.reset();
+        myfile.flushPage();
+        stats.saveIfDue();
     }
     
     //Method called when selected
     //Checks if PIN and PUK is blocked
     public boolean select() {
-    	//Garbage Collector
-    	JCSystem.requestObjectDeletion();
+    	stats.add(usageStats.SELECTS, (short)1);
+    	
+    	//Complete a File move of the Arena cut off by a tear
+    	myfile.finishMove();
+    	
+    	//Garbage Collector, only when Files left garbage
+    	if(myfile.hasGarbage()) {
+    		collectGarbage();
+    		stats.add(usageStats.SELECT_GC, (short)1);
+    	}
     	//Check if tries remaining
     	//If not delete Data and block applet
 	    if(pin.getTriesRemaining() == 0 && puk.getTriesRemaining() == 0) {
 	    	ISOException.throwIt((short)(SW_CARD_LOCKED));
-	    	myfile.deleteFile(myfile.keepassData1);
-	        myfile.deleteFile(myfile.keepassData2);
-	        myfile.deleteFile(myfile.keepassFileName);
-	        myfile.deleteFile(myfile.keepassPW);
+	    	myfile.deleteAllFiles();
 		    return false;
 	    }
 	    
@@ -148,19 +290,61 @@ public class passwordSafe extends Applet
     }
 
 	//Method called when Data incoming
+	//Every command and failure is counted in the Usage Statistics
 	public void process(APDU apdu) {
+		byte ins = apdu.getBuffer()[ISO7816.OFFSET_INS];
+		
+		if(selectingApplet()) {
+			processCommand(apdu);
+			return;
+		}
+		
+		stats.countCommand(ins);
+		try {
+			processCommand(apdu);
+		} catch(ISOException e) {
+			stats.countFailure(ins, e.getReason());
+			throw e;
+		} catch(RuntimeException e) {
+			stats.countFailure(ins, ISO7816.SW_UNKNOWN);
+			throw e;
+		}
+	}
+	
+	//Method for running a command
+	private void processCommand(APDU apdu) {
 		//Create Variables
 		byte buffer[] = apdu.getBuffer();
 		byte cla = buffer[ISO7816.OFFSET_CLA];
         byte ins = buffer[ISO7816.OFFSET_INS];
         
         //When Applet selected send Data back with State value
+        //Second Byte tells if the Garbage Collector was requested, the card status follows
         if(selectingApplet()) {
-			buffer[0] = state;
-            apdu.setOutgoingAndSend((short) 0, (short) 1);
+			sendStatus(apdu);
 			return;
         }
         
+        //GET RESPONSE continues a streaming read
+        //Every other command ends it
+        if(ins == INS_GET_RESPONSE && (cla == ISO7816.CLA_ISO7816 || cla == CLA_NUMBER)) {
+        	getResponse(apdu);
+        	return;
+        }
+        stream[STREAM_REMAINING] = (short)0;
+        
+        //Command chaining is only allowed for UPDATE_BINARY
+        //A running chain must be finished before other commands
+        if(ins == INS_UPDATE_BINARY && cla == CLA_CHAINING) {
+        	writeFile(apdu);
+        	return;
+        } else if(cla == CLA_CHAINING) {
+        	ISOException.throwIt(ISO7816.SW_COMMAND_CHAINING_NOT_SUPPORTED);
+        } else if(ins != INS_UPDATE_BINARY && chain[CHAIN_ACTIVE] != 0) {
+        	chain[CHAIN_ACTIVE] = (short)0;
+        	ISOException.throwIt(ISO7816.SW_LAST_COMMAND_EXPECTED);
+        }
+        
         //Check if right CLA Byte
         if(cla == CLA_NUMBER) {
         	
@@ -186,6 +370,10 @@ public class passwordSafe extends Applet
 				case INS_CARD_RESET:
 					cardReset(apdu);
 					break;
+				//INS = 0x25
+				case INS_OPEN_SESSION:
+					openSession(apdu);
+					break;
 					
 				//Master Password
 				//INS = 0x30
@@ -227,6 +415,43 @@ public class passwordSafe extends Applet
 					getFileName(apdu);
 					break;	
 					
+				//INS = 0x46
+				case INS_FLUSH:
+					flush(apdu);
+					break;
+					
+				//INS = 0x47
+				case INS_GET_MANIFEST:
+					getManifest(apdu);
+					break;
+					
+				//INS = 0x48
+				case INS_GET_FILE_STATE:
+					getFileState(apdu);
+					break;
+					
+				//Batch
+				//INS = 0x50
+				case INS_BATCH:
+					batch(apdu);
+					break;
+				//INS = 0x51
+				case INS_COLLECT:
+					collect(apdu);
+					break;
+				//INS = 0x53
+				case INS_STATS:
+					getStats(apdu);
+					break;
+				//INS = 0x54
+				case INS_CAPABILITIES:
+					getCapabilities(apdu);
+					break;
+				//INS = 0x55
+				case INS_STATUS_POLICY:
+					setStatusPolicy(apdu);
+					break;
+					
 				default:
 					ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
 	        }
@@ -237,6 +462,65 @@ public class passwordSafe extends Applet
         }
 	}
 	
+	//Method for sending the card status on SELECT
+	//Response = State + GC Byte + 6F [A5 [80 State][81 PIN tries + PUK tries][82 Master PW state][83 GC Byte]
+	//           [84 File sizes][85 File Name]]
+	//File sizes and File Name only when allowed with INS 55 and the Files exist
+	//File Name is left out when it does not fit in the response
+	private void sendStatus(APDU apdu) {
+		byte[] buf = apdu.getBuffer();
+		byte gc = collected[0] ? (byte)0x01 : (byte)0x00;
+		short le = apdu.setOutgoing();
+		short max = (short)(buf.length < le ? buf.length : le);
+		if(max > STATUS_MAX_LENGTH) {
+			max = STATUS_MAX_LENGTH;
+		}
+		
+		//Write status items
+		short offset = setTag(buf, STATUS_ITEMS, TAG_STATE, (short)1);
+		buf[offset++] = state;
+		offset = setTag(buf, offset, TAG_TRIES, (short)2);
+		buf[offset++] = pin.getTriesRemaining();
+		buf[offset++] = puk.getTriesRemaining();
+		offset = setTag(buf, offset, TAG_MASTER_PW, (short)1);
+		buf[offset++] = masterPW;
+		offset = setTag(buf, offset, TAG_COLLECTED, (short)1);
+		buf[offset++] = gc;
+		
+		if(statusPolicy == STATUS_POLICY_PUBLIC && state == STATE_SECURE_DATA) {
+			offset = setTag(buf, offset, TAG_FILE_SIZES, (short)4);
+			offset += copyFileSizes(buf, offset);
+			
+			short length = myfile.getFileSize(myfile.keepassFileName);
+			if((short)(offset + 3 + length) <= max) {
+				offset = setTag(buf, offset, TAG_FILE_NAME, length);
+				offset += copyFileName(buf, offset);
+			}
+		}
+		
+		//Write State, GC Byte and headers, then move items behind them
+		short items = (short)(offset - STATUS_ITEMS);
+		buf[0] = state;
+		buf[1] = gc;
+		offset = setTag(buf, (short)2, TAG_FCI, (short)(items + (items > 0x7F ? 3 : 2)));
+		offset = setTag(buf, offset, TAG_PROPRIETARY, items);
+		Util.arrayCopyNonAtomic(buf, STATUS_ITEMS, buf, offset, items);
+		
+		apdu.setOutgoingLength((short)(offset + items));
+		apdu.sendBytes((short)0, (short)(offset + items));
+	}
+	
+	//Method for writing Tag and Length of a TLV, Length up to 255
+	//Returns Offset of the Value
+	private static short setTag(byte[] buf, short offset, byte tag, short length) {
+		buf[offset++] = tag;
+		if(length > 0x7F) {
+			buf[offset++] = (byte)0x81;
+		}
+		buf[offset++] = (byte)length;
+		return offset;
+	}
+	
 	//Method for card personalisation
 	//APDU incoming Data
 	//CLA = 0x80; INS = 0x20; P1 = 0x00; P2 = 0x01
@@ -273,9 +557,7 @@ public class passwordSafe extends Applet
         }
         
         //Create Hash Value of the PIN and store it in aesKey
-        MessageDigest hash = MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false);
-        hash.reset();
-        hash.doFinal(buf, offset_cdata, lc, aesKey, (short)0x00);
+        crypto.setKeyFromPIN(buf, offset_cdata, lc);
         
         //Pad the PIN to max length and update PIN Variable
         Util.arrayFillNonAtomic(buf, (short)(offset_cdata + lc), (short)(PIN_MAX_LENGTH - lc), (byte) 0x00);
@@ -298,6 +580,7 @@ public class passwordSafe extends Applet
 	
 	//Method for PIN verification
 	//CLA = 0x80; INS = 0x21; P1 = 0x01; P2 = 0x00; Data = PIN
+	//Encrypted: P2 = 0x01; Data = 0xFF padded PIN; P2 = 0x81; Data = [Length][PIN]
 	private void checkPIN(APDU apdu) throws ISOException {
 		byte[] buf = apdu.getBuffer();
 		byte p1 = buf[ISO7816.OFFSET_P1];
@@ -319,45 +602,59 @@ public class passwordSafe extends Applet
         }
         
         //Check if P1 and P2 are correct
-        if (p1 == (byte)0x01 && p2 == (byte)0x01) {
-        	//Decrypt buffer
-	        byte[] tmp = new byte[lc];
-	        Util.arrayCopy(buf, offset_cdata, tmp, (short)0, lc);
-	        byte[] decrypted = decryptData(tmp, lc);
-	        
-	        for(short i = 0; i < 16; i++){
-		        if (decrypted[i] != (byte)0xFF){
-			        lc = (short)(16 - i);
-			        Util.arrayCopy(decrypted, (short)i, buf, offset_cdata, lc);
-			        break;
-		        }
-	        }	                
-        } else if (p1 != (byte)0x01 && p2 != (byte)0x00) {
-	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        //Decrypted Data is wiped on every exit
+        try {
+	        if (p1 == (byte)0x01 && p2 == (byte)(0x01 | P2_FRAMED)) {
+	        	//Decrypt buffer and get PIN from frame
+	        	short end = decryptToScratch(buf, offset_cdata, lc);
+	        	lc = getFrameLength((short)0, end, PIN_MAX_LENGTH);
+	        	Util.arrayCopyNonAtomic(scratch, (short)1, buf, offset_cdata, lc);
+	        } else if (p1 == (byte)0x01 && p2 == (byte)0x01) {
+	        	//Decrypt buffer and remove padding
+	        	decryptToScratch(buf, offset_cdata, lc);
+	        	lc = removePadding((short)0, buf, offset_cdata);
+	        } else if (p1 != (byte)0x01 && p2 != (byte)0x00) {
+		        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+	        }
+        } finally {
+        	wipeScratch();
         }
         
+        //Check PIN and send Master PW state back
+        buf[0] = verifyPIN(buf, offset_cdata, lc);
+		apdu.setOutgoingAndSend((short) 0, (short) 1);
+	}
+	
+	//Method for checking a PIN
+	//PIN is padded in place to max length
+	//Returns Master PW state
+	private byte verifyPIN(byte[] pinData, short offset, short length) throws ISOException {
+		if (length > PIN_MAX_LENGTH) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		
         //Pad the PIN to max length
-        Util.arrayFillNonAtomic(buf, (short)(offset_cdata + lc), (short)(PIN_MAX_LENGTH - lc), (byte) 0x00);
+        Util.arrayFillNonAtomic(pinData, (short)(offset + length), (short)(PIN_MAX_LENGTH - length), (byte) 0x00);
         
         //Check PIN
-        if (! pin.check(buf, offset_cdata, PIN_MAX_LENGTH)) {
+        if (! pin.check(pinData, offset, PIN_MAX_LENGTH)) {
 	        ISOException.throwIt((short)(SW_PIN_TRIES_REMAINING | pin.getTriesRemaining()));
 	        
 	        //PIN false send number of tries Remaining back
 	        if (pin.getTriesRemaining() == 0) {
 		        state = STATE_PIN_LOCKED;
 	        }   
-        } else {
-        	//PIN correct, send Master PW state back
-	        buf[0] = masterPW;
-			apdu.setOutgoingAndSend((short) 0, (short) 1);
         }
         
+        //Key is ready for the rest of the session
+        crypto.prepareKey();
+        return masterPW;
 	}
 
 	//Method for PIN change 
 	//CLA = 0x80; INS = 0x22; P1 = 0x00; P2 = 0x02;Data = OLD_PIN + NEW_PIN
 	//Musst be padded, new Pin length check at phone
+	//Encrypted: P2 = 0x01; P2 = 0x81; Data = [Length][OLD_PIN][Length][NEW_PIN]
 	private void changePIN(APDU apdu) throws ISOException {
 		byte[] buf = apdu.getBuffer();
 		byte p1 = buf[ISO7816.OFFSET_P1];
@@ -380,36 +677,37 @@ public class passwordSafe extends Applet
         offset_cdata = apdu.getOffsetCdata();
         
         //Check if P1 and P2 are correct
-        if ( p1 == (byte)0x00 && p2 == (byte)0x01 ) {
-        	//Decrypt buffer
-	        byte[] tmp1 = new byte[(short)(lc / 2)];
-	        byte[] tmp2 = new byte[(short)(lc / 2)];
-	        Util.arrayCopy(buf, offset_cdata, tmp1, (short)0, (short)(lc / 2));
-	        Util.arrayCopy(buf, (short)(offset_cdata + (lc / 2)), tmp2, (short)0, (short)(lc / 2));
-	        
-	        tmp1 = decryptData(tmp1, (short)(lc / 2));
-	        tmp2 = decryptData(tmp2, (short)(lc / 2));
-	        short L1 = 0,L2 = 0;
-	        
-	        for(short i = 0; i < 16; i++){
-		        if (tmp1[i] != (byte)0xFF){
-			        L1 = (short)(16 - i);
-			        Util.arrayCopy(tmp1, (short)i, buf, offset_cdata, L1);
-			        break;
-		        }
-	        }
+        //Decrypted Data is wiped on every exit
+        try {
+	        if ( p1 == (byte)0x00 && p2 == (byte)(0x01 | P2_FRAMED) ) {
+	        	//Decrypt buffer and get both PINs from frame, padded to max length
+	        	short end = decryptToScratch(buf, offset_cdata, lc);
+	        	short L1 = getFrameLength((short)0, end, PIN_MAX_LENGTH);
+	        	short next = (short)(L1 + 1);
+	        	short L2 = getFrameLength(next, end, PIN_MAX_LENGTH);
+	        	
+	        	//New PIN needs the same length as on INIT
+	        	if (L2 < PIN_MIN_LENGTH) {
+	        		ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+	        	}
+        	
+	        	Util.arrayFillNonAtomic(buf, offset_cdata, (short)(2 * PIN_MAX_LENGTH), (byte) 0x00);
+	        	Util.arrayCopyNonAtomic(scratch, (short)1, buf, offset_cdata, L1);
+	        	Util.arrayCopyNonAtomic(scratch, (short)(next + 1), buf, (short)(offset_cdata + PIN_MAX_LENGTH), L2);
+	        	lc = (short)(2 * PIN_MAX_LENGTH);
+        	
+	        } else if ( p1 == (byte)0x00 && p2 == (byte)0x01 ) {
+	        	//Decrypt buffer and remove padding of both blocks
+	        	decryptToScratch(buf, offset_cdata, lc);
+	        	short L1 = removePadding((short)0, buf, offset_cdata);
+	        	short L2 = removePadding(BLOCK_SIZE, buf, (short)(offset_cdata + L1));
+		        lc = (short)(L1 + L2);
 	        
-	        for(short o = 0; o < 16; o++){
-		        if (tmp2[o] != (byte)0xFF){
-			        L2 = (short)(16 - o);
-			        Util.arrayCopy(tmp2, (short)o, buf, (short)(offset_cdata + L1), L2);
-			        break;
-		        }
+	        } else if (p1 != (byte)0x00 && p2 != (byte)0x02) {
+		        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 	        }
-	        lc = (short)(L1 + L2);
-	        
-        } else if (p1 != (byte)0x00 && p2 != (byte)0x02) {
-	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        } finally {
+        	wipeScratch();
         }
         
         //Check if length is 2 * Max PIN
@@ -432,6 +730,7 @@ public class passwordSafe extends Applet
 
 	//Method for reseting the PIN
 	//CLA = 0x80; INS = 23; P1 = 0x01; P2 = 02; Data = PUK + PIN 
+	//Encrypted: P2 = 0x01; P2 = 0x81; Data = [Length][PUK][Length][PIN], PIN optional
 	private void resetPIN(APDU apdu) throws ISOException {
 		byte[] buf = apdu.getBuffer();
 		byte p1 = buf[ISO7816.OFFSET_P1];
@@ -458,34 +757,48 @@ public class passwordSafe extends Applet
         }
         
         //Check if P1 and P2 are correct
-        if ( p1 == (byte)0x01 && p2 == (byte)0x01 ) {
-        	//Decrypt buffer
-	        byte[] tmp1 = new byte[(short)16];
+        //Decrypted Data is wiped on every exit
+        try {
+	        if ( p1 == (byte)0x01 && p2 == (byte)(0x01 | P2_FRAMED) ) {
+	        	//Decrypt buffer and get PUK and optional PIN from frame
+	        	short end = decryptToScratch(buf, offset_cdata, lc);
+	        	short L1 = getFrameLength((short)0, end, PUK_LENGTH);
+	        	short L2 = 0;
+	        	short next = (short)(L1 + 1);
+	        	if (L1 != PUK_LENGTH) {
+	        		ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+	        	}
+        	
+	        	if (next < end && scratch[next] != (byte)0x00) {
+	        		L2 = getFrameLength(next, end, PIN_MAX_LENGTH);
+	        		if (L2 < PIN_MIN_LENGTH) {
+	        			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+	        		}
+	        		Util.arrayCopyNonAtomic(scratch, (short)(next + 1), buf, (short)(offset_cdata + L1), L2);
+	        	}
+	        	Util.arrayCopyNonAtomic(scratch, (short)1, buf, offset_cdata, L1);
+        	
+	        	lc = (short)(L1 + L2);
+        	
+	        } else if ( p1 == (byte)0x01 && p2 == (byte)0x01 ) {
+	        	//Decrypt buffer, PUK is in the second half of the first block
+	        	decryptToScratch(buf, offset_cdata, lc);
+	        	short L1 = PUK_LENGTH;
+	        	short L2 = 0;
+        	
+	        	//Second block holds the padded new PIN
+	        	if (lc == (short)(2 * BLOCK_SIZE)) {
+	        		L2 = removePadding(BLOCK_SIZE, buf, (short)(offset_cdata + L1));
+	        	}
+	        	Util.arrayCopyNonAtomic(scratch, (short)(BLOCK_SIZE - PUK_LENGTH), buf, offset_cdata, L1);
 	        
-	        Util.arrayCopy(buf, offset_cdata, tmp1, (short)0, (short)16);
-	        short L1 = 0,L2 = 0;
-	        tmp1 = decryptData(tmp1, (short)16);
-			L1 = PUK_LENGTH;
-			
-			Util.arrayCopy(tmp1, (short)8, buf, offset_cdata, L1);
+		        lc = (short)(L1 + L2);
 	        
-	        if (lc == (short)16){
-		        byte[] tmp2 = new byte[(short)(lc / 2)];
-		        Util.arrayCopy(buf, (short)(offset_cdata + (lc / 2)), tmp2, (short)0, (short)(lc / 2));
-		        tmp2 = decryptData(tmp2, (short)(lc / 2));
-		        for(short o = 0; o < 16; o++){
-					if (tmp2[o] != (byte)0xFF){
-						L2 = (short)(16 - o);
-						Util.arrayCopy(tmp2, (short)o, buf, (short)(offset_cdata + L1), L2);
-						break;
-					}
-				}
+	        } else if (p1 != (byte)0x01 && p2 != (byte)0x02) {
+		        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
 	        }
-	        
-	        lc = (short)(L1 + L2);
-	        
-        } else if (p1 != (byte)0x01 && p2 != (byte)0x02) {
-	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        } finally {
+        	wipeScratch();
         }
         
         //Check if PUK is correct
@@ -508,6 +821,7 @@ public class passwordSafe extends Applet
 	
 	//Method for Reset the Card
 	//CLA = 0x80; INS = 24; P1 = 0x00; P2 = 00; Data = PUK
+	//Encrypted: P2 = 0x01; P2 = 0x81; Data = [Length][PUK]
 	private void cardReset(APDU apdu) throws ISOException {
 		byte[] buf = apdu.getBuffer();
 		byte p1 = buf[ISO7816.OFFSET_P1];
@@ -529,17 +843,23 @@ public class passwordSafe extends Applet
         offset_cdata = apdu.getOffsetCdata();
         
         //Check if P1 and P2 are correct
-        if (p1 == (byte)0x00 && p2 == (byte)0x01) {
-        	//Decrypt buffer
-	        byte[] tmp1 = new byte[(short)16];
-	        
-	        Util.arrayCopy(buf, offset_cdata, tmp1, (short)0, (short)16);
-	        tmp1 = decryptData(tmp1, (short)16);
-			lc = PUK_LENGTH;
-			
-			Util.arrayCopy(tmp1, (short)8, buf, offset_cdata, lc);	                
-        } else if ( p1 != (byte)0x00 && p2 != (byte)0x00 ) {
-	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        //Decrypted Data is wiped on every exit
+        try {
+	        if (p1 == (byte)0x00 && p2 == (byte)(0x01 | P2_FRAMED)) {
+	        	//Decrypt buffer and get PUK from frame
+	        	short end = decryptToScratch(buf, offset_cdata, lc);
+	        	lc = getFrameLength((short)0, end, PUK_LENGTH);
+	        	Util.arrayCopyNonAtomic(scratch, (short)1, buf, offset_cdata, lc);
+	        } else if (p1 == (byte)0x00 && p2 == (byte)0x01) {
+	        	//Decrypt buffer, PUK is in the second half of the block
+	        	decryptToScratch(buf, offset_cdata, lc);
+				lc = PUK_LENGTH;
+				Util.arrayCopyNonAtomic(scratch, (short)(BLOCK_SIZE - PUK_LENGTH), buf, offset_cdata, lc);
+	        } else if ( p1 != (byte)0x00 && p2 != (byte)0x00 ) {
+		        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+	        }
+        } finally {
+        	wipeScratch();
         }
 
         //Check if PUK is correct
@@ -548,15 +868,51 @@ public class passwordSafe extends Applet
         }
         
         //Delete all Data
-        myfile.deleteFile(myfile.keepassData1);
-	    myfile.deleteFile(myfile.keepassData2);
-	    myfile.deleteFile(myfile.keepassFileName);
-	    myfile.deleteFile(myfile.keepassPW);
+        myfile.deleteAllFiles();
         
         //Set state to Initial state
         state = STATE_INIT;
         masterPW = MASTER_PW_STORED_NO;
         masterPWlength = (byte)0; 
+        statusPolicy = STATUS_POLICY_HIDDEN;
+	}
+
+	//Method for opening a Secure Messaging session for File transfers
+	//CLA = 0x80; INS = 25; P1 = 0x00; P2 = 0x00; Data = host challenge (16 Bytes)
+	//Response = card challenge (16 Bytes); Session Keys are derived from the PIN key and both challenges
+	private void openSession(APDU apdu) throws ISOException {
+		byte[] buf = apdu.getBuffer();
+		byte p1 = buf[ISO7816.OFFSET_P1];
+        byte p2 = buf[ISO7816.OFFSET_P2];
+        short offset_cdata;
+        short lc;
+        
+        //Check if PIN Flag is True
+        if(! pin.isValidated()) {
+	        ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        
+        //Check lenght field
+        lc = apdu.setIncomingAndReceive();
+        if(lc != apdu.getIncomingLength() || lc != cryptoEngine.CHALLENGE_LENGTH) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        //Get the Offset of the Data
+        offset_cdata = apdu.getOffsetCdata();
+        
+        //Check if P1 and P2 are correct
+        if(p1 != (byte)0x00 || p2 != (byte)0x00) {
+	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        
+        //Host challenge followed by card challenge
+        Util.arrayCopyNonAtomic(buf, offset_cdata, buf, (short)0, cryptoEngine.CHALLENGE_LENGTH);
+        randomKey.generateData(buf, cryptoEngine.CHALLENGE_LENGTH, cryptoEngine.CHALLENGE_LENGTH);
+        crypto.openSession(buf, (short)0);
+        
+        //Send card challenge back
+        apdu.setOutgoingAndSend(cryptoEngine.CHALLENGE_LENGTH, cryptoEngine.CHALLENGE_LENGTH);
 	}
 
 	//Method for saving the Master Password
@@ -588,17 +944,19 @@ public class passwordSafe extends Applet
         }
         
         //Check if P1 and P2 are correct
-        if (p1 == (byte)0x01 && p2 == (byte)0x01) {
-        	//Decrypt buffer
-	        byte[] tmp1 = new byte[(short)48];
-	        Util.arrayCopy(buf, offset_cdata, tmp1, (short)0, (short)48);
-	        
-	        byte[] dec = decryptData(tmp1, (short)48);
-			lc = (short)dec[0];
+        //Decrypted Data is wiped on every exit
+        try {
+	        if (p1 == (byte)0x01 && p2 == (byte)0x01) {
+	        	//Decrypt buffer, first byte is length, Password at the end
+	        	decryptToScratch(buf, offset_cdata, SCRATCH_SIZE);
+	        	lc = getFrameLength((short)0, SCRATCH_SIZE, (short)(SCRATCH_SIZE - 1));
 			
-			Util.arrayCopy(dec, (short)(48 - lc), buf, offset_cdata, lc);	                
-        } else if(p1 != (byte)0x02 && p2 != (byte)0x01) {
-	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+				Util.arrayCopyNonAtomic(scratch, (short)(SCRATCH_SIZE - lc), buf, offset_cdata, lc);
+	        } else if(p1 != (byte)0x02 && p2 != (byte)0x01) {
+		        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+	        }
+        } finally {
+        	wipeScratch();
         }
 
         //Create File for Password and write Data to File
@@ -639,27 +997,35 @@ public class passwordSafe extends Applet
         
         //Check if P1 and P2 are correct
         if (p1 == (byte)0x01 && p2 == (byte)0x02) {
-	        byte[] tmpsen = new byte[48];
-	        Util.arrayFillNonAtomic(tmpsen, (short)0x00, (short)48, (byte)0x00);
-	        tmpsen[0] = (byte)masterPWlength; 
-	        
-	        short desOff = (short)(48 - (byte)masterPWlength);
-	        byte readLen = (byte)masterPWlength;
-	        byte[] tmp = myfile.readDataFromFile(myfile.keepassPW, (short)0, masterPWlength);
-	        Util.arrayCopy(tmp, (short)0x00, tmpsen, desOff, readLen);
-	        
-	        tmpsen = encryptData(tmpsen, (short)48);
-	        Util.arrayCopy(tmpsen, (short)0, buf, (short)0, (short)48);
-			apdu.setOutgoingAndSend((short) 0, (short)48); 
+        	//First byte is length, Password at the end
+	        wipeScratch();
+	        try {
+		        scratch[0] = masterPWlength; 
+		        
+		        byte[] tmp = myfile.readDataFromFile(myfile.keepassPW, (short)0, masterPWlength);
+		        Util.arrayCopyNonAtomic(tmp, (short)0x00, scratch, (short)(SCRATCH_SIZE - masterPWlength), masterPWlength);
+		        
+		        //Encrypt into buffer
+		        crypto.encrypt(scratch, (short)0, SCRATCH_SIZE, buf, (short)0);
+	        } finally {
+		        wipeScratch();
+	        }
+			apdu.setOutgoingAndSend((short) 0, SCRATCH_SIZE); 
 			return;
         } else if(p1 != (byte)0x02 && p2 != (byte)0x02) {
 	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
         
         //Read Master PW from File and send back
+        apdu.setOutgoingAndSend((short) 0, copyMasterPW(buf, (short)0)); 
+	}
+	
+	//Method for copying the Master PW
+	//Returns length of the Master PW
+	private short copyMasterPW(byte[] out, short outOffset) {
         byte[] tmp = myfile.readDataFromFile(myfile.keepassPW, (short)0, masterPWlength);
-        Util.arrayCopy(tmp, (short)0, buf, (short)0, masterPWlength);
-        apdu.setOutgoingAndSend((short) 0, masterPWlength); 
+        Util.arrayCopy(tmp, (short)0, out, outOffset, masterPWlength);
+        return masterPWlength;
 	}
 
 	//Method for deleting the Master Password
@@ -702,6 +1068,7 @@ public class passwordSafe extends Applet
 
 	//Method for Creating File
 	//CLA = 0x80; INS = 40; P1 = 0x01; P2 = 01; Data = Filesize1 + Filesize2 + Filename
+	//Additional File: P2 = 20 to 7F; Data = Filesize
 	private void createFile(APDU apdu) throws ISOException {
 		byte[] buf = apdu.getBuffer();
 		byte p1 = buf[ISO7816.OFFSET_P1];
@@ -722,6 +1089,19 @@ public class passwordSafe extends Applet
         
         //Get the Offset of the Data
         offset_cdata = apdu.getOffsetCdata();
+        
+        //Create additional File
+        if ( p2 >= P2_EXTRA_FILE_MIN ) {
+	        if ( state != STATE_SECURE_DATA ) {
+		        ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+	        }
+	        if ( lc != 2 ) {
+		        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+	        }
+	        myfile.createFile(getDataFileID(p2), Util.getShort(buf, offset_cdata));
+	        return;
+        }
+        
         //Check if the State is correct
         if ( state == STATE_INIT || state == STATE_SECURE_DATA ) {
 	        ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
@@ -732,21 +1112,24 @@ public class passwordSafe extends Applet
 	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
 
+        //Check if both Filesizes are there
+        if ( lc < 4 ) {
+	        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+
 		//Get Filesizes from Buffer
         Util.arrayCopy(buf, offset_cdata, temp_data, (short)0, (short)2);
         short tmp1 = Util.makeShort(temp_data[0], temp_data[1]);
         Util.arrayCopy(buf, (short)(offset_cdata + 2), temp_data, (short)0, (short)2);
         short tmp2 = Util.makeShort(temp_data[0], temp_data[1]);
         
-        short bytesLC = (short) (buf[ISO7816.OFFSET_LC] & 0x00FF);
-        
         //Create Files
         myfile.createFile(myfile.keepassData1, tmp1);
 	    myfile.createFile(myfile.keepassData2, tmp2);
-	    myfile.createFile(myfile.keepassFileName, (short)(bytesLC - 4));
+	    myfile.createFile(myfile.keepassFileName, (short)(lc - 4));
 	    
 	    //Write Filename to File
-	    myfile.writeDataToFile(myfile.keepassFileName, (short)0, buf, (short)(offset_cdata + 4), (short)(bytesLC - 4));
+	    myfile.writeDataToFile(myfile.keepassFileName, (short)0, buf, (short)(offset_cdata + 4), (short)(lc - 4));
         
         //Set new State
 		state = STATE_SECURE_DATA;
@@ -754,12 +1137,17 @@ public class passwordSafe extends Applet
 	
 	//Method for writing Data to File
 	//CLA = 0x80; INS = 41; P1 = 0x03; P2 = 01 for File 1 and 02 for File 2; Data = FileOffset + Data
+	//Data may be sent as extended APDU, it is received and written in parts
+	//Chaining: CLA = 0x90 for all but the last APDU; only the first APDU carries the FileOffset
+	//Buffered: P1 = 0x04; Data is written in pages, INS 46 makes it durable
+	//Secure Messaging: P1 = 0x06; Data = encrypted FileOffset + Data, MAC; session opened with INS 25
 	private void writeFile(APDU apdu) throws ISOException {
 		byte[] buf = apdu.getBuffer();
 		byte p1 = buf[ISO7816.OFFSET_P1];
         byte p2 = buf[ISO7816.OFFSET_P2];
         short offset_cdata;
         short lc;
+        short received;
         
         //Check if PIN Flag is True
         if(! pin.isValidated()) {
@@ -767,45 +1155,102 @@ public class passwordSafe extends Applet
         }
         
         //Check lenght field
-        lc = apdu.setIncomingAndReceive();
-        if(lc != apdu.getIncomingLength()) {
-            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
-        }
+        received = apdu.setIncomingAndReceive();
+        lc = apdu.getIncomingLength();
         
         //Get the Offset of the Data
         offset_cdata = apdu.getOffsetCdata();
         //Check if the State is correct
         if(state == STATE_INIT || state == STATE_SECURE_NO_DATA) {
+	        chain[CHAIN_ACTIVE] = (short)0;
 	        ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
         }
         
         //Check if P1 is correct
-        if(p1 != (byte)0x03) {
+        if(p1 != (byte)0x03 && p1 != P1_WRITE_BUFFERED && p1 != P1_SECURE) {
+	        chain[CHAIN_ACTIVE] = (short)0;
 	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
         
-        //Get Length and Offset
-        short data_length = (short)(lc - 2);
-        short data_offset = (short)(offset_cdata + 2);
-        short file_offset = Util.getShort(buf, offset_cdata);
-        
         //Check which file should be modified
-        //and write Data to this File
-        if(p2 == (byte)0x01) {
+        short fileID = getDataFileID(p2);
+        
+        //Secure Messaging: Data = encrypted FileOffset + Data, MAC
+        if(p1 == P1_SECURE) {
+	        if(received != lc || chain[CHAIN_ACTIVE] != 0 || apdu.isCommandChainingCLA()) {
+		        chain[CHAIN_ACTIVE] = (short)0;
+		        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+	        }
 	        
-	        myfile.writeDataToFile(myfile.keepassData1, file_offset, buf, data_offset, data_length);
+	        short length = crypto.unwrap(INS_UPDATE_BINARY, buf, offset_cdata, lc);
+	        if(length < 2) {
+		        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+	        }
 	        
-        } else if (p2 == (byte)0x02) {
+	        myfile.writeDataToFile(fileID, Util.getShort(buf, offset_cdata), buf, (short)(offset_cdata + 2), (short)(length - 2));
+	        return;
+        }
+        short header = (short)2;
+        short file_offset;
+        
+        //Continue a running chain at the saved Offset
+        if(chain[CHAIN_ACTIVE] != 0) {
+	        if(fileID != chain[CHAIN_FILE]) {
+		        chain[CHAIN_ACTIVE] = (short)0;
+		        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+	        }
+	        header = (short)0;
+	        file_offset = chain[CHAIN_OFFSET];
+	        chain[CHAIN_ACTIVE] = (short)0;
+        } else {
+	        if(lc < 2 || received < 2) {
+		        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+	        }
+	        file_offset = Util.getShort(buf, offset_cdata);
+        }
+        
+        //Get Length and Offset
+        short data_length = (short)(received - header);
+        short data_offset = (short)(offset_cdata + header);
+        short remaining = (short)(lc - received);
+        
+        //Check if all Data fits before writing the first part
+        if(file_offset < 0 || file_offset > (short)(myfile.getFileSize(fileID) - (short)(lc - header))) {
+	        ISOException.throwIt(ISO7816.SW_FILE_FULL);
+        }
+        
+        //Write Data to File and receive the next part
+        while(true) {
+	        if(p1 == P1_WRITE_BUFFERED) {
+		        myfile.writeBufferedToFile(fileID, file_offset, buf, data_offset, data_length);
+	        } else {
+		        myfile.writeDataToFile(fileID, file_offset, buf, data_offset, data_length);
+	        }
+	        file_offset += data_length;
 	        
-	        myfile.writeDataToFile(myfile.keepassData2, file_offset, buf, data_offset, data_length);
+	        if(remaining == 0) {
+		        break;
+	        }
 	        
-        } else {
-	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+	        data_length = apdu.receiveBytes(offset_cdata);
+	        data_offset = offset_cdata;
+	        remaining -= data_length;
+        }
+        
+        //Save cursor when more APDUs of the chain follow
+        if(apdu.isCommandChainingCLA()) {
+	        chain[CHAIN_FILE] = fileID;
+	        chain[CHAIN_OFFSET] = file_offset;
+	        chain[CHAIN_ACTIVE] = (short)1;
         }
 	}
 	
 	//Method for reading Data from File
-	//CLA = 0x80; INS = 42; P1 = 0x03; P2 = 01 for File 1 and 02 for File 2; Data = FileOffset
+	//CLA = 0x80; INS = 42; P1 = 0x03; P2 = 01 for File 1 and 02 for File 2; Data = FileOffset + Length
+	//Length may be larger than 256 when sent as extended APDU
+	//Streaming: P1 = 0x04; Data = optional FileOffset; rest of File follows with 61xx and GET RESPONSE
+	//Secure Messaging: P1 = 0x06; Data = encrypted FileOffset + Length, MAC; Response = encrypted Data, MAC
+	//Both Files: P1 = 0x05; P2 = 03; Data = FileOffset1 + FileOffset2; see readBothFiles
 	private void readFile(APDU apdu) throws ISOException {
 		byte[] buf = apdu.getBuffer();
 		byte p1 = buf[ISO7816.OFFSET_P1];
@@ -831,6 +1276,42 @@ public class passwordSafe extends Applet
 	        ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
         }
         
+        //Secure Messaging: Data is copied to the Buffer, encrypted and signed
+        if(p1 == P1_SECURE) {
+	        short fileID = getDataFileID(p2);
+	        if(crypto.unwrap(INS_READ_BINARY, buf, offset_cdata, lc) != 4) {
+		        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+	        }
+	        
+	        short file_offset = Util.getShort(buf, offset_cdata);
+	        short data_length = Util.getShort(buf, (short)(offset_cdata + 2));
+	        if(data_length < 0 || data_length > (short)(buf.length - cryptoEngine.BLOCK_LENGTH - cryptoEngine.MAC_LENGTH)) {
+		        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+	        }
+	        
+	        myfile.copyDataFromFile(fileID, file_offset, buf, (short)0, data_length);
+	        short length = crypto.wrap(INS_READ_BINARY, buf, (short)0, data_length);
+	        apdu.setOutgoing();
+	        apdu.setOutgoingLength(length);
+	        apdu.sendBytes((short)0, length);
+	        return;
+        }
+        
+        //Check if both Files should be read
+        if(p1 == P1_READ_BOTH) {
+	        if(p2 != P2_BOTH_FILES || lc != 4) {
+		        ISOException.throwIt(lc != 4 ? ISO7816.SW_WRONG_LENGTH : ISO7816.SW_INCORRECT_P1P2);
+	        }
+	        readBothFiles(apdu, Util.getShort(buf, offset_cdata), Util.getShort(buf, (short)(offset_cdata + 2)));
+	        return;
+        }
+        
+        //Check if whole File should be streamed
+        if(p1 == P1_READ_STREAM) {
+	        startReadStream(apdu, getDataFileID(p2), lc == 2 ? Util.getShort(buf, offset_cdata) : (short)0);
+	        return;
+        }
+        
         //Check if P1 is correct
         if(p1 != (byte)0x03) {
 	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
@@ -841,25 +1322,118 @@ public class passwordSafe extends Applet
         short file_offset = Util.getShort(buf, offset_cdata);
         
         //Check which file should be read from
-        //and read Data from File
-        if(p2 == (byte)0x01) {
-	        
-	        Util.arrayCopy(myfile.readDataFromFile(myfile.keepassData1, file_offset, data_length), (short)0, buf, (short)0, data_length);
-	        
-        } else if (p2 == (byte)0x02) {
-	        
-	        Util.arrayCopy(myfile.readDataFromFile(myfile.keepassData2, file_offset, data_length), (short)0, buf, (short)0, data_length);
-	        
-        } else {
-	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        short fileID = getDataFileID(p2);
+        
+        //Check if Data is inside of the File
+        if(data_length < 0 || file_offset < 0 || file_offset > (short)(myfile.getFileSize(fileID) - data_length)) {
+	        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
         }
 		
-		//Send Data back
-        apdu.setOutgoingAndSend((short)0, data_length);
+		//Send Data back directly from the File
+        apdu.setOutgoing();
+        apdu.setOutgoingLength(data_length);
+        myfile.sendDataFromFile(apdu, fileID, file_offset, data_length);
+	}
+	
+	//Method for reading the next parts of both Data Files in one response
+	//Response = Length1 + Length2 + Data of File 1 + Data of File 2
+	//Every File gets half of the response, room a File does not need goes to the other
+	private void readBothFiles(APDU apdu, short offset1, short offset2) {
+		short remaining1 = (short)(myfile.getFileSize(myfile.keepassData1) - offset1);
+		short remaining2 = (short)(myfile.getFileSize(myfile.keepassData2) - offset2);
+		
+		//Check if Offsets are inside of the Files
+		if(offset1 < 0 || offset2 < 0 || remaining1 < 0 || remaining2 < 0) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		
+		short le = apdu.setOutgoing();
+		short room = (short)(le - BOTH_HEADER_LENGTH);
+		if(room < 0) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
+		
+		//Split the room between both Files
+		short part1 = (short)(room / 2);
+		if(part1 > remaining1) {
+			part1 = remaining1;
+		}
+		short part2 = (short)(room - part1);
+		if(part2 > remaining2) {
+			part2 = remaining2;
+		}
+		if((short)(part1 + part2) < room && part1 < remaining1) {
+			part1 = (short)(room - part2) < remaining1 ? (short)(room - part2) : remaining1;
+		}
+		
+		//Send header, then Data directly from both Files
+		byte[] buf = apdu.getBuffer();
+		Util.setShort(buf, (short)0, part1);
+		Util.setShort(buf, (short)2, part2);
+		apdu.setOutgoingLength((short)(BOTH_HEADER_LENGTH + part1 + part2));
+		apdu.sendBytes((short)0, BOTH_HEADER_LENGTH);
+		myfile.sendDataFromFile(apdu, myfile.keepassData1, offset1, part1);
+		myfile.sendDataFromFile(apdu, myfile.keepassData2, offset2, part2);
+	}
+	
+	//Method for starting a streaming read
+	//Sets the cursor and sends the first part of the File
+	private void startReadStream(APDU apdu, short fileID, short file_offset) {
+		short size = myfile.getFileSize(fileID);
+		
+		//Check if Offset is inside of the File
+		if(file_offset < 0 || file_offset > size) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
+		
+		stream[STREAM_FILE] = fileID;
+		stream[STREAM_OFFSET] = file_offset;
+		stream[STREAM_REMAINING] = (short)(size - file_offset);
+		
+		sendStreamPart(apdu);
+	}
+	
+	//Method for sending the next part of a streaming read
+	//CLA = 0x00 or 0x80; INS = C0; P1 = 0x00; P2 = 0x00; Le = length of the part
+	private void getResponse(APDU apdu) throws ISOException {
+		//Check if PIN Flag is True
+		if(! pin.isValidated()) {
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+		
+		//Check if a streaming read is running
+		if(stream[STREAM_REMAINING] == 0) {
+			ISOException.throwIt(ISO7816.SW_CONDITIONS_NOT_SATISFIED);
+		}
+		
+		sendStreamPart(apdu);
+	}
+	
+	//Method for sending one part at the stream cursor
+	//Status word 61xx tells the host how many bytes are left
+	private void sendStreamPart(APDU apdu) {
+		short le = apdu.setOutgoing();
+		short part = stream[STREAM_REMAINING];
+		if(part > le) {
+			part = le;
+		}
+		
+		apdu.setOutgoingLength(part);
+		myfile.sendDataFromFile(apdu, stream[STREAM_FILE], stream[STREAM_OFFSET], part);
+		
+		//Move cursor
+		stream[STREAM_OFFSET] += part;
+		stream[STREAM_REMAINING] -= part;
+		
+		short remaining = stream[STREAM_REMAINING];
+		if(remaining > 0) {
+			ISOException.throwIt((short)(ISO7816.SW_BYTES_REMAINING_00 | (remaining > 0xFF ? 0x00 : remaining)));
+		}
 	}
 	
 	//Method for Deleting Files
 	//CLA = 0x80; INS = 43; P1 = 0x03; P2 = 01 for File 1 and 02 for File 2 and 03 for both Files; 
+	//P2 = 20 to 7F for an additional File
 	private void deleteFile(APDU apdu) throws ISOException {
 		byte[] buf = apdu.getBuffer();
 		byte p1 = buf[ISO7816.OFFSET_P1];
@@ -890,6 +1464,12 @@ public class passwordSafe extends Applet
 	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
         
+        //Delete additional File, State stays
+        if(p2 >= P2_EXTRA_FILE_MIN) {
+	        myfile.deleteFile(getDataFileID(p2));
+	        return;
+        }
+        
         //Check which file should be deleted and delete this File
         if(p2 == (byte)0x01) {
 	        
@@ -946,16 +1526,21 @@ public class passwordSafe extends Applet
 	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
         
+        //Copy File sizes to Buffer and send Buffer back
+        apdu.setOutgoingAndSend((short)0, copyFileSizes(buf, (short)0));
+	}
+	
+	//Method for copying the File sizes
+	//Returns length of the Data
+	private short copyFileSizes(byte[] out, short outOffset) {
         //Get the File size
         short tmp1 = myfile.getFileSize(myfile.keepassData1);
         short tmp2 = myfile.getFileSize(myfile.keepassData2);
 
 		//Copy Data to Buffer
-		Util.setShort(buf, (short)0, tmp1);
-        Util.setShort(buf, (short)2, tmp2);
-        
-        //Send Buffer back
-        apdu.setOutgoingAndSend((short)0, (short)4);
+		Util.setShort(out, outOffset, tmp1);
+        Util.setShort(out, (short)(outOffset + 2), tmp2);
+        return (short)4;
 	}
 	
 	//Method for getting the File Name
@@ -990,36 +1575,433 @@ public class passwordSafe extends Applet
 	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
         }
         
+        //Read File Name from File and send it back
+		apdu.setOutgoingAndSend((short)0, copyFileName(buf, (short)0));
+	}
+	
+	//Method for copying the File Name
+	//Returns length of the File Name
+	private short copyFileName(byte[] out, short outOffset) {
         //Create length Variable
         short length = myfile.getFileSize(myfile.keepassFileName);
         
-        //Read File Name from File and send it back
-        Util.arrayCopy(myfile.readDataFromFile(myfile.keepassFileName, (short)0, length), (short)0, buf, (short)0, length);
-		apdu.setOutgoingAndSend((short)0, length);
+        //Read File Name from File
+        Util.arrayCopy(myfile.readDataFromFile(myfile.keepassFileName, (short)0, length), (short)0, out, outOffset, length);
+        return length;
+	}
+	
+	//Method for writing buffered Data to the File
+	//CLA = 0x80; INS = 46; P1 = 0x03; P2 = 0x00
+	private void flush(APDU apdu) throws ISOException {
+		byte[] buf = apdu.getBuffer();
+		
+        //Check if PIN Flag is True
+        if(! pin.isValidated()) {
+	        ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        
+        //Check if P1 and P2 are correct
+        if(buf[ISO7816.OFFSET_P1] != (byte)0x03 || buf[ISO7816.OFFSET_P2] != (byte)0x00) {
+	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        
+        myfile.flushPage();
+	}
+	
+	//Method for getting the Block Digests of a File
+	//CLA = 0x80; INS = 47; P1 = 0x03; P2 = 01 for File 1 and 02 for File 2; Data = first block (optional)
+	//Response = Block size + Block count + Digests from the first block, as many as fit
+	private void getManifest(APDU apdu) throws ISOException {
+		byte[] buf = apdu.getBuffer();
+		byte p1 = buf[ISO7816.OFFSET_P1];
+        byte p2 = buf[ISO7816.OFFSET_P2];
+        short offset_cdata;
+        short lc;
+        
+        //Check if PIN Flag is True
+        if(! pin.isValidated()) {
+	        ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        
+        //Check lenght field
+        lc = apdu.setIncomingAndReceive();
+        if(lc != apdu.getIncomingLength()) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        //Get the Offset of the Data
+        offset_cdata = apdu.getOffsetCdata();
+        //Check if the State is correct
+        if(state == STATE_INIT || state == STATE_SECURE_NO_DATA) {
+	        ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+        }
+        
+        //Check if P1 is correct
+        if(p1 != (byte)0x03) {
+	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        
+        short fileID = getDataFileID(p2);
+        short first = lc == 2 ? Util.getShort(buf, offset_cdata) : (short)0;
+        short blocks = myfile.getBlockCount(myfile.getFileSize(fileID));
+        
+        //Get number of Digests which fit in the response
+        short le = apdu.setOutgoing();
+        short max = (short)(buf.length < le ? buf.length : le);
+        short count = (short)((short)(max - 4) / fileSystem.DIGEST_LENGTH);
+        if(first < 0 || first > blocks) {
+	        ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+        }
+        if(count > (short)(blocks - first)) {
+	        count = (short)(blocks - first);
+        }
+        
+        //Copy Digests to Buffer and send Buffer back
+        Util.setShort(buf, (short)0, fileSystem.HASH_BLOCK_SIZE);
+        Util.setShort(buf, (short)2, blocks);
+        short length = (short)(4 + myfile.copyBlockDigests(fileID, first, count, buf, (short)4));
+        apdu.setOutgoingLength(length);
+        apdu.sendBytes((short)0, length);
+	}
+	
+	//Method for getting the Generation and Digest of all Files
+	//CLA = 0x80; INS = 48; P1 = 0x03; P2 = 0x00
+	//Response = Generation + [FileID + Generation + Filesize + Digest] for every File
+	private void getFileState(APDU apdu) throws ISOException {
+		byte[] buf = apdu.getBuffer();
+		
+        //Check if PIN Flag is True
+        if(! pin.isValidated()) {
+	        ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        
+        //Check if the State is correct
+        if(state == STATE_INIT) {
+	        ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+        }
+        
+        //Check if P1 and P2 are correct
+        if(buf[ISO7816.OFFSET_P1] != (byte)0x03 || buf[ISO7816.OFFSET_P2] != (byte)0x00) {
+	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        
+        //Copy Generation and File states to Buffer and send Buffer back
+        Util.setShort(buf, (short)0, myfile.getGeneration());
+        short length = (short)(2 + myfile.copyFileStates(buf, (short)2));
+        apdu.setOutgoing();
+        apdu.setOutgoingLength(length);
+        apdu.sendBytes((short)0, length);
+	}
+	
+	//Method for running the Garbage Collector
+	//CLA = 0x80; INS = 51; P1 = 0x00; P2 = 0x00
+	//Response = 01 when the Garbage Collector was requested
+	private void collect(APDU apdu) throws ISOException {
+		byte[] buf = apdu.getBuffer();
+		
+        //Check if PIN Flag is True
+        if(! pin.isValidated()) {
+	        ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        
+        //Check if P1 and P2 are correct
+        if(buf[ISO7816.OFFSET_P1] != (byte)0x00 || buf[ISO7816.OFFSET_P2] != (byte)0x00) {
+	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        
+        collectGarbage();
+        
+        buf[0] = collected[0] ? (byte)0x01 : (byte)0x00;
+        apdu.setOutgoingAndSend((short)0, (short)1);
+	}
+	
+	//Method for reading the Usage Statistics
+	//CLA = 0x80; INS = 53; P1 = 0x00 read, 0x01 read and clear; P2 = 0x00
+	//Response = totals, see usageStats.copyTotals
+	private void getStats(APDU apdu) throws ISOException {
+		byte[] buf = apdu.getBuffer();
+		byte p1 = buf[ISO7816.OFFSET_P1];
+		
+        //Check if PIN Flag is True
+        if(! pin.isValidated()) {
+	        ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        
+        //Check if P1 and P2 are correct
+        if((p1 != (byte)0x00 && p1 != (byte)0x01) || buf[ISO7816.OFFSET_P2] != (byte)0x00) {
+	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        
+        //Copy as many INS records as fit in the response
+        short le = apdu.setOutgoing();
+        short max = (short)(buf.length < le ? buf.length : le);
+        if(max < usageStats.HEADER_LENGTH) {
+	        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        short length = stats.copyTotals(buf, (short)0, max);
+        if(p1 == (byte)0x01) {
+	        stats.reset();
+        }
+        
+        apdu.setOutgoingLength(length);
+        apdu.sendBytes((short)0, length);
+	}
+	
+	//Method for getting the Capabilities of the card
+	//CLA = 0x80; INS = 54; P1 = 0x00; P2 = 0x00
+	//Response = Version + Protocol + In block size + Out block size + Buffer length
+	//           + max READ_BINARY length + max UPDATE_BINARY Data length + Flags
+	private void getCapabilities(APDU apdu) throws ISOException {
+		byte[] buf = apdu.getBuffer();
+		
+        //Check if P1 and P2 are correct
+        if(buf[ISO7816.OFFSET_P1] != (byte)0x00 || buf[ISO7816.OFFSET_P2] != (byte)0x00) {
+	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        
+        byte protocol = APDU.getProtocol();
+        buf[0] = CAPABILITIES_VERSION;
+        buf[1] = protocol;
+        Util.setShort(buf, (short)2, APDU.getInBlockSize());
+        Util.setShort(buf, (short)4, APDU.getOutBlockSize());
+        Util.setShort(buf, (short)6, (short)buf.length);
+        
+        //Limits follow from the APDU buffer, a whole command must fit with its header
+        //T=0 over a contact interface and buffers without room for an extended command get short limits
+        short maxRead = (short)buf.length;
+        short maxWrite = (short)(buf.length - ISO7816.OFFSET_EXT_CDATA);
+        if(((protocol & APDU.PROTOCOL_MEDIA_MASK) == APDU.PROTOCOL_MEDIA_DEFAULT && (protocol & APDU.PROTOCOL_TYPE_MASK) == APDU.PROTOCOL_T0)
+        		|| maxWrite <= SHORT_MAX_LENGTH) {
+	        maxRead = maxRead < (short)(SHORT_MAX_LENGTH + 1) ? maxRead : (short)(SHORT_MAX_LENGTH + 1);
+	        maxWrite = (short)(buf.length - ISO7816.OFFSET_CDATA);
+	        maxWrite = maxWrite < SHORT_MAX_LENGTH ? maxWrite : SHORT_MAX_LENGTH;
+        }
+        
+        //Data of a write follows the FileOffset
+        Util.setShort(buf, (short)8, maxRead);
+        Util.setShort(buf, (short)10, (short)(maxWrite - 2));
+        buf[12] = (byte)(CAP_EXTENDED_LENGTH | CAP_CHAINING | CAP_READ_STREAM | CAP_SECURE | CAP_READ_BOTH);
+        
+        apdu.setOutgoingAndSend((short)0, CAPABILITIES_LENGTH);
+	}
+	
+	//Method for setting if File sizes and File Name are sent on SELECT
+	//CLA = 0x80; INS = 55; P1 = 0x00 hidden, 0x01 public; P2 = 0x00
+	private void setStatusPolicy(APDU apdu) throws ISOException {
+		byte[] buf = apdu.getBuffer();
+		byte p1 = buf[ISO7816.OFFSET_P1];
+		
+        //Check if PIN Flag is True
+        if(! pin.isValidated()) {
+	        ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        
+        //Check if P1 and P2 are correct
+        if((p1 != STATUS_POLICY_HIDDEN && p1 != STATUS_POLICY_PUBLIC) || buf[ISO7816.OFFSET_P2] != (byte)0x00) {
+	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        
+        statusPolicy = p1;
+	}
+	
+	//Method for requesting the Garbage Collector
+	private void collectGarbage() {
+		if(JCSystem.isObjectDeletionSupported()) {
+			JCSystem.requestObjectDeletion();
+			myfile.clearGarbage();
+			collected[0] = true;
+		}
+	}
+	
+	//Method for running several commands in one APDU
+	//CLA = 0x80; INS = 50; P1 = 0x00; P2 = 0x00; Data = [INS][Length][Data]...
+	//Supported INS: 21 (plain PIN), 31, 44, 45
+	//Response = [INS][Length][SW1][SW2][Data]... for every command
+	//Commands and responses share the APDU buffer, a response which would reach
+	//the commands still to run fails the batch with 6700
+	private void batch(APDU apdu) throws ISOException {
+		byte[] buf = apdu.getBuffer();
+		byte p1 = buf[ISO7816.OFFSET_P1];
+        byte p2 = buf[ISO7816.OFFSET_P2];
+        short offset_cdata;
+        short lc;
+        
+        //Check lenght field, the commands have to be in the buffer at once
+        lc = apdu.setIncomingAndReceive();
+        if(lc != apdu.getIncomingLength()) {
+            ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+        }
+        
+        //Get the Offset of the Data
+        offset_cdata = apdu.getOffsetCdata();
+        
+        //Check if P1 and P2 are correct
+        if(p1 != (byte)0x00 || p2 != (byte)0x00) {
+	        ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+        }
+        
+        //Move commands to the end of the buffer, responses are written from the start
+        short in = (short)(buf.length - lc);
+        Util.arrayCopyNonAtomic(buf, offset_cdata, buf, in, lc);
+        short end = (short)buf.length;
+        short out = (short)0;
+        
+        try {
+	        while(in < end) {
+		        //Check if command fits
+		        if((short)(in + 2) > end || (short)(in + 2 + (buf[(short)(in + 1)] & 0xFF)) > end) {
+			        ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		        }
+		        
+		        byte ins = buf[in];
+		        short length = (short)(buf[(short)(in + 1)] & 0xFF);
+		        short next = (short)(in + 2 + length);
+		        short sw = ISO7816.SW_NO_ERROR;
+		        short result = (short)0;
+		        
+		        //Response must not reach the commands which are still to run
+		        if((short)(out + 4) > next) {
+			        ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		        }
+		        
+		        //Run command, its status word is part of the response
+		        try {
+			        result = batchCommand(ins, buf, (short)(in + 2), length, (short)(out + 4), next);
+		        } catch(ISOException e) {
+			        sw = e.getReason();
+			        result = (short)0;
+		        }
+		        
+		        buf[out] = ins;
+		        buf[(short)(out + 1)] = (byte)(result + 2);
+		        Util.setShort(buf, (short)(out + 2), sw);
+		        out += (short)(result + 4);
+		        in = next;
+	        }
+        } finally {
+	        wipeScratch();
+        }
+        
+        //Send responses back
+        apdu.setOutgoing();
+        apdu.setOutgoingLength(out);
+        apdu.sendBytes((short)0, out);
+	}
+	
+	//Method for running one command of a batch
+	//Checks are the same as in the single command
+	// offset, length = Data of the command in the buffer
+	// outOffset, limit = Space for the response Data in the buffer
+	//Returns length of the response Data
+	private short batchCommand(byte ins, byte[] buf, short offset, short length, short outOffset, short limit) throws ISOException {
+		if(ins != INS_PIN_VERIFY && ! pin.isValidated()) {
+			ISOException.throwIt(ISO7816.SW_SECURITY_STATUS_NOT_SATISFIED);
+		}
+		if(state == STATE_INIT) {
+			ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+		}
+		
+		switch(ins) {
+			case INS_PIN_VERIFY:
+				//Copy PIN to PIN area of scratch for padding
+				if(length > PIN_MAX_LENGTH) {
+					ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+				}
+				Util.arrayCopyNonAtomic(buf, offset, scratch, (short)0, length);
+				checkBatchSpace(outOffset, (short)1, limit);
+				buf[outOffset] = verifyPIN(scratch, (short)0, length);
+				return (short)1;
+				
+			case INS_PW_GET:
+				if(masterPW == MASTER_PW_STORED_NO) {
+					ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+				}
+				checkBatchSpace(outOffset, masterPWlength, limit);
+				return copyMasterPW(buf, outOffset);
+				
+			case INS_FILE_SIZE:
+				checkBatchSpace(outOffset, (short)4, limit);
+				return copyFileSizes(buf, outOffset);
+				
+			case INS_GET_FILE_NAME:
+				if(state == STATE_SECURE_NO_DATA) {
+					ISOException.throwIt(ISO7816.SW_COMMAND_NOT_ALLOWED);
+				}
+				checkBatchSpace(outOffset, myfile.getFileSize(myfile.keepassFileName), limit);
+				return copyFileName(buf, outOffset);
+				
+			default:
+				ISOException.throwIt(ISO7816.SW_INS_NOT_SUPPORTED);
+		}
+		
+		return (short)0;
+	}
+	
+	//Method for checking if a batch response fits in the length byte of its TLV
+	//and in front of the commands which are still to run
+	private void checkBatchSpace(short outOffset, short length, short limit) {
+		if(length > (short)(0xFF - 2) || (short)(outOffset + length) > limit) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
 	}
 
-	private byte[] encryptData(byte[] decryptedData, short len){
-		Key key = KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_256, false);
-		byte[] enc = new byte[len];
-		((AESKey)key).setKey(aesKey, (short)0);
+	//Method for getting the ID of a Data File from P2
+	//P2 = 01 for File 1 and 02 for File 2, 20 to 7F for additional Files
+	private short getDataFileID(byte p2) {
+		if(p2 == (byte)0x01) {
+			return fileSystem.keepassData1;
+		} else if(p2 == (byte)0x02) {
+			return fileSystem.keepassData2;
+		} else if(p2 >= P2_EXTRA_FILE_MIN) {
+			return (short)(EXTRA_FILE_BASE | p2);
+		}
 		
-		Cipher cipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
-		cipher.init(key, Cipher.MODE_ENCRYPT);
-		cipher.doFinal(decryptedData, (short)0, len, enc, (short)0);
+		ISOException.throwIt(ISO7816.SW_INCORRECT_P1P2);
+		return (short)-1;
+	}
+	
+	//Method for clearing the scratch Array
+	//Called on every exit of a command which decrypted into it
+	private void wipeScratch() {
+		Util.arrayFillNonAtomic(scratch, (short)0, SCRATCH_SIZE, (byte)0x00);
+	}
+	
+	//Method for decrypting incoming Data into the scratch Array
+	//Returns the length of the decrypted Data
+	private short decryptToScratch(byte[] buf, short offset, short length) {
+		if (length > SCRATCH_SIZE || length == 0 || (short)(length % BLOCK_SIZE) != 0) {
+			ISOException.throwIt(ISO7816.SW_WRONG_LENGTH);
+		}
 		
-		return enc;
+		return crypto.decrypt(buf, offset, length, scratch, (short)0);
 	}
 	
-	private byte[] decryptData(byte[] encryptedData, short len){
-		Key key = KeyBuilder.buildKey(KeyBuilder.TYPE_AES_TRANSIENT_DESELECT, KeyBuilder.LENGTH_AES_256, false);
-		((AESKey)key).setKey(aesKey, (short)0);
+	//Method for getting the length of a framed field in the scratch Array
+	// offset = Offset of the length byte
+	// end = End of the decrypted Data
+	// maxLength = Maximum length of the field
+	private short getFrameLength(short offset, short end, short maxLength) {
+		short length = (short)(scratch[offset] & 0xFF);
 		
-		byte[] dec = new byte[len];
+		if (length > maxLength || (short)(offset + 1 + length) > end) {
+			ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		}
 		
-		Cipher cipher = Cipher.getInstance(Cipher.ALG_AES_BLOCK_128_ECB_NOPAD, false);
-		cipher.init(key, Cipher.MODE_DECRYPT);
-		cipher.doFinal(encryptedData, (short)0, len, dec, (short)0);
+		return length;
+	}
+	
+	//Method for removing the 0xFF padding of a block in the scratch Array
+	//Copies the Data to dest and returns the length
+	private short removePadding(short offset, byte[] dest, short destOffset) {
+		for(short i = 0; i < BLOCK_SIZE; i++){
+			if (scratch[(short)(offset + i)] != (byte)0xFF){
+				short length = (short)(BLOCK_SIZE - i);
+				Util.arrayCopyNonAtomic(scratch, (short)(offset + i), dest, destOffset, length);
+				return length;
+			}
+		}
 		
-		return dec;
+		ISOException.throwIt(ISO7816.SW_WRONG_DATA);
+		return 0;
 	}
 }
@@ -0,0 +1,228 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassSafe;
+
+import javacard.framework.*;
+
+//Usage Statistics Class
+//Counts commands, failures, File bytes and Garbage Collector runs
+//Counting only touches RAM, counts are added to the persistent totals on read-out
+//and on deselect once a counter passed SAVE_THRESHOLD, so most sessions do not write EEPROM
+//Counts below the threshold are lost when the card is reset or removed
+public class usageStats {
+	
+	//RAM count from which the counters are saved on the next deselect
+	public static final short SAVE_THRESHOLD = (short)0x0100;
+	
+	//Index of the File and select counters, behind the INS counters
+	public static final short BYTES_READ    = (short)0;
+	public static final short BYTES_WRITTEN = (short)1;
+	public static final short SELECTS       = (short)2;
+	public static final short SELECT_GC     = (short)3;
+	private static final short GENERAL_COUNTERS = (short)4;
+	
+	//Length of the header and of one INS record of the read-out
+	public static final short HEADER_LENGTH = (short)(GENERAL_COUNTERS * 4 + 3 + 1);
+	public static final short RECORD_LENGTH = (short)9;
+	
+	//Counted INS, commands with other INS are counted in the last slot
+	private byte[] insList;
+	private short insCount;
+	
+	//RAM counters: commands per INS, failures per INS, general counters
+	private short[] counts;
+	//Persistent totals, two shorts per counter: high and low word
+	private short[] totals;
+	//Last failure: SW + INS, RAM and persistent
+	private short[] lastFailure;
+	private short[] lastFailureTotal;
+	//Set when a RAM counter passed SAVE_THRESHOLD
+	private boolean[] saveDue;
+	
+	//Create Usage Statistics
+	// insList = INS which get their own counters
+	public usageStats(byte[] insList) {
+		this.insList = insList;
+		insCount = (short)(insList.length + 1);
+		
+		short counters = (short)(2 * insCount + GENERAL_COUNTERS);
+		counts = JCSystem.makeTransientShortArray(counters, JCSystem.CLEAR_ON_RESET);
+		totals = new short[(short)(2 * counters)];
+		lastFailure = JCSystem.makeTransientShortArray((short)2, JCSystem.CLEAR_ON_RESET);
+		lastFailureTotal = new short[2];
+		saveDue = JCSystem.makeTransientBooleanArray((short)1, JCSystem.CLEAR_ON_RESET);
+	}
+	
+	//Method for counting a command
+	public void countCommand(byte ins) {
+		increment(getInsIndex(ins), (short)1);
+	}
+	
+	//Method for counting a failed command
+	//61xx and 90xx are no failures
+	// sw = Status word of the command
+	public void countFailure(byte ins, short sw) {
+		byte sw1 = (byte)(sw >> 8);
+		if(sw1 == (byte)0x61 || sw1 == (byte)0x90) {
+			return;
+		}
+		
+		increment((short)(insCount + getInsIndex(ins)), (short)1);
+		lastFailure[0] = sw;
+		lastFailure[1] = (short)(ins & 0xFF);
+	}
+	
+	//Method for adding to a general counter
+	// counter = BYTES_READ, BYTES_WRITTEN, SELECTS or SELECT_GC
+	// value = Value to add, not negative
+	public void add(short counter, short value) {
+		increment((short)(2 * insCount + counter), value);
+	}
+	
+	//Method for saving the RAM counters when one passed SAVE_THRESHOLD
+	public void saveIfDue() {
+		if(saveDue[0]) {
+			save();
+		}
+	}
+	
+	//Method for adding the RAM counters to the persistent totals
+	//Skipped inside a running transaction, the counters are added later
+	public void save() {
+		if(JCSystem.getTransactionDepth() != 0) {
+			return;
+		}
+		
+		JCSystem.beginTransaction();
+		for(short i = 0; i < (short)counts.length; i++) {
+			if(counts[i] != 0) {
+				addTotal(i, counts[i]);
+			}
+		}
+		if(lastFailure[0] != 0) {
+			lastFailureTotal[0] = lastFailure[0];
+			lastFailureTotal[1] = lastFailure[1];
+		}
+		JCSystem.commitTransaction();
+		
+		for(short i = 0; i < (short)counts.length; i++) {
+			counts[i] = (short)0;
+		}
+		lastFailure[0] = (short)0;
+		saveDue[0] = false;
+	}
+	
+	//Method for clearing all totals
+	public void reset() {
+		save();
+		
+		JCSystem.beginTransaction();
+		for(short i = 0; i < (short)totals.length; i++) {
+			totals[i] = (short)0;
+		}
+		lastFailureTotal[0] = (short)0;
+		lastFailureTotal[1] = (short)0;
+		JCSystem.commitTransaction();
+	}
+	
+	//Method for copying the totals
+	//Data = [Bytes read][Bytes written][Selects][Select GC runs] 4 Bytes each + last failure SW + INS + record count
+	//Then for every INS with commands: [INS][Commands 4 Bytes][Failures 4 Bytes], INS 00 holds other commands
+	//Returns length of the Data
+	public short copyTotals(byte[] out, short outOffset, short maxLength) {
+		save();
+		
+		short start = outOffset;
+		short general = (short)(2 * insCount);
+		for(short i = 0; i < GENERAL_COUNTERS; i++) {
+			outOffset = copyTotal((short)(general + i), out, outOffset);
+		}
+		Util.setShort(out, outOffset, lastFailureTotal[0]);
+		out[(short)(outOffset + 2)] = (byte)lastFailureTotal[1];
+		short countOffset = (short)(outOffset + 3);
+		outOffset += 4;
+		
+		byte records = 0;
+		for(short i = 0; i < insCount; i++) {
+			if((short)(outOffset - start + RECORD_LENGTH) > maxLength) {
+				break;
+			}
+			if(totals[(short)(2 * i)] == 0 && totals[(short)(2 * i + 1)] == 0) {
+				continue;
+			}
+			
+			out[outOffset] = i < (short)insList.length ? insList[i] : (byte)0x00;
+			outOffset = copyTotal(i, out, (short)(outOffset + 1));
+			outOffset = copyTotal((short)(insCount + i), out, outOffset);
+			records++;
+		}
+		out[countOffset] = records;
+		
+		return (short)(outOffset - start);
+	}
+	
+	//Method for getting the slot of an INS
+	private short getInsIndex(byte ins) {
+		for(short i = 0; i < (short)insList.length; i++) {
+			if(insList[i] == ins) {
+				return i;
+			}
+		}
+		return (short)insList.length;
+	}
+	
+	//Method for adding to a RAM counter
+	//Counter is saved first when it would overflow
+	private void increment(short index, short value) {
+		if(counts[index] > (short)(0x7FFF - value)) {
+			save();
+			if(counts[index] > (short)(0x7FFF - value)) {
+				return;
+			}
+		}
+		counts[index] += value;
+		if(counts[index] >= SAVE_THRESHOLD) {
+			saveDue[0] = true;
+		}
+	}
+	
+	//Method for adding a value to a 32 bit total
+	private void addTotal(short index, short value) {
+		short high = (short)(2 * index);
+		short low = (short)(high + 1);
+		short old = totals[low];
+		totals[low] += value;
+		
+		//Carry when the unsigned low word got smaller
+		if((short)(totals[low] ^ (short)0x8000) < (short)(old ^ (short)0x8000)) {
+			totals[high]++;
+		}
+	}
+	
+	//Method for copying one 32 bit total
+	//Returns Offset behind the total
+	private short copyTotal(short index, byte[] out, short outOffset) {
+		Util.setShort(out, outOffset, totals[(short)(2 * index)]);
+		Util.setShort(out, (short)(outOffset + 2), totals[(short)(2 * index + 1)]);
+		return (short)(outOffset + 4);
+	}
+}
@@ -0,0 +1,126 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import javax.smartcardio.CardException;
+
+//Cached Client Class
+//Reads Files through a fileCache, one INS 48 tells if the cached Data is still current
+//Writes through this client update the cache
+public class cachedClient {
+	
+	private final safeClient client;
+	private final fileCache cache;
+	private final String card;
+	
+	//Create Cached Client
+	// client = client of the card
+	// cache = cache, may be shared by several cards
+	// card = identity of the card, must be unique among the cards using the cache
+	public cachedClient(safeClient client, fileCache cache, String card) {
+		this.client = client;
+		this.cache = cache;
+		this.card = card;
+	}
+	
+	//Method for getting the client
+	public safeClient getClient() {
+		return client;
+	}
+	
+	//Method for reading a whole File
+	//Check and read run as one task, so no other command of the client comes between
+	// file = P2 of the File
+	public CompletableFuture<byte[]> readFile(int file) {
+		return client.submit(() -> {
+			fileState state = getState(client.repeat(client::transmitFileStates), fileState.getFileID(file));
+			byte[] data = cache.get(card, state);
+			if(data == null) {
+				data = client.readChunks(file, 0, state.getSize());
+				cache.put(card, state, data);
+			}
+			return data;
+		});
+	}
+	
+	//Method for getting the File Name
+	public CompletableFuture<String> getFileName() {
+		return client.submit(() -> {
+			fileState state = getState(client.repeat(client::transmitFileStates), fileState.keepassFileName);
+			byte[] data = cache.get(card, state);
+			if(data == null) {
+				data = client.repeat(() -> client.transmit(safeClient.INS_GET_FILE_NAME, 0x01, 0x01, null, 256));
+				cache.put(card, state, data);
+			}
+			return new String(data, StandardCharsets.UTF_8);
+		});
+	}
+	
+	//Method for writing Data to a File
+	//Cached Data is patched and gets the new File state
+	//When the File changed since it was cached, the entry is removed instead
+	// file = P2 of the File
+	public CompletableFuture<Void> writeFile(int file, int offset, byte[] data) {
+		byte[] copy = data.clone();
+		int fileID = fileState.getFileID(file);
+		
+		return client.submit(() -> {
+			//State the cached Data must have for the patch to be right
+			fileState before = client.repeat(client::transmitFileStates).get(fileID);
+			
+			//A failed write may have changed part of the File
+			try {
+				client.writeChunks(file, offset, copy);
+			} catch(CardException | RuntimeException e) {
+				cache.invalidate(card, fileID);
+				throw e;
+			}
+			fileState state = client.repeat(client::transmitFileStates).get(fileID);
+			if(before == null || state == null) {
+				cache.invalidate(card, fileID);
+			} else {
+				cache.update(card, before, state, offset, copy);
+			}
+			return null;
+		});
+	}
+	
+	//Method for creating both Data Files and the File Name
+	//All cached Files of the card are removed
+	public CompletableFuture<Void> createFiles(int size1, int size2, String name) {
+		cache.invalidate(card);
+		return client.createFiles(size1, size2, name);
+	}
+	
+	//Method for getting the state of one File
+	private static fileState getState(Map<Integer, fileState> states, int fileID) throws statusException {
+		fileState state = states.get(fileID);
+		if(state == null) {
+			throw new statusException(safeClient.INS_GET_FILE_STATE, 0x6A82);
+		}
+		return state;
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+//Card Capabilities Class
+//Buffer limits and features of the card as sent by INS 54
+public final class cardCapabilities {
+	
+	//Flags of the Capabilities
+	public static final int CAP_EXTENDED_LENGTH = 0x01;
+	public static final int CAP_CHAINING        = 0x02;
+	public static final int CAP_READ_STREAM     = 0x04;
+	public static final int CAP_SECURE          = 0x08;
+	public static final int CAP_READ_BOTH       = 0x10;
+	
+	//Protocol values of the card, low nibble
+	public static final int PROTOCOL_T0 = 0x00;
+	public static final int PROTOCOL_T1 = 0x01;
+	//Media values of the card, high nibble
+	public static final int PROTOCOL_MEDIA_MASK = 0xF0;
+	
+	static final int LENGTH = 13;
+	
+	private final int version;
+	private final int protocol;
+	private final int inBlockSize;
+	private final int outBlockSize;
+	private final int bufferLength;
+	private final int maxRead;
+	private final int maxWrite;
+	private final int flags;
+	
+	//Create Card Capabilities from the response of INS 54
+	//Response = Version + Protocol + In block size + Out block size + Buffer length
+	//           + max READ_BINARY length + max UPDATE_BINARY Data length + Flags
+	public cardCapabilities(byte[] data) {
+		if(data.length < LENGTH) {
+			throw new IllegalArgumentException("Capabilities too short: " + data.length);
+		}
+		version = data[0] & 0xFF;
+		protocol = data[1] & 0xFF;
+		inBlockSize = safeClient.getShort(data, 2);
+		outBlockSize = safeClient.getShort(data, 4);
+		bufferLength = safeClient.getShort(data, 6);
+		maxRead = safeClient.getShort(data, 8);
+		maxWrite = safeClient.getShort(data, 10);
+		flags = data[12] & 0xFF;
+	}
+	
+	public int getVersion() {
+		return version;
+	}
+	
+	public int getProtocol() {
+		return protocol;
+	}
+	
+	public int getInBlockSize() {
+		return inBlockSize;
+	}
+	
+	public int getOutBlockSize() {
+		return outBlockSize;
+	}
+	
+	public int getBufferLength() {
+		return bufferLength;
+	}
+	
+	public int getMaxRead() {
+		return maxRead;
+	}
+	
+	public int getMaxWrite() {
+		return maxWrite;
+	}
+	
+	//Method for checking a flag
+	public boolean has(int flag) {
+		return (flags & flag) != 0;
+	}
+	
+	//Method for checking if extended APDUs can be used
+	//T=0 over a contact interface has no extended length
+	public boolean canUseExtendedLength() {
+		boolean t0 = (protocol & PROTOCOL_MEDIA_MASK) == 0 && (protocol & 0x0F) == PROTOCOL_T0;
+		return has(CAP_EXTENDED_LENGTH) && !t0;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("protocol %02X, in %d, out %d, buffer %d, read %d, write %d, flags %02X",
+				protocol, inBlockSize, outBlockSize, bufferLength, maxRead, maxWrite, flags);
+	}
+}
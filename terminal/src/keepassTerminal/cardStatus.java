@@ -0,0 +1,158 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import java.nio.charset.StandardCharsets;
+
+//Card Status Class
+//Status of the card as sent on SELECT
+//Response = State + GC Byte + 6F [A5 [80 State][81 PIN tries + PUK tries][82 Master PW state][83 GC Byte]
+//           [84 File sizes][85 File Name]]
+public final class cardStatus {
+	
+	//Values for the State
+	public static final int STATE_INIT           = 0x00;
+	public static final int STATE_SECURE_NO_DATA = 0x01;
+	public static final int STATE_SECURE_DATA    = 0x02;
+	public static final int STATE_PIN_LOCKED     = 0x03;
+	
+	//Tags of the status items
+	static final int TAG_FCI         = 0x6F;
+	static final int TAG_PROPRIETARY = 0xA5;
+	static final int TAG_STATE       = 0x80;
+	static final int TAG_TRIES       = 0x81;
+	static final int TAG_MASTER_PW   = 0x82;
+	static final int TAG_COLLECTED   = 0x83;
+	static final int TAG_FILE_SIZES  = 0x84;
+	static final int TAG_FILE_NAME   = 0x85;
+	
+	private int state;
+	private boolean collected;
+	private int pinTries = -1;
+	private int pukTries = -1;
+	private int masterPW = -1;
+	private int[] fileSizes;
+	private String fileName;
+	
+	//Create Card Status from the SELECT response
+	//Older Applets only send State and GC Byte
+	public cardStatus(byte[] data) {
+		if(data.length < 1) {
+			throw new IllegalArgumentException("Empty SELECT response");
+		}
+		state = data[0] & 0xFF;
+		collected = data.length > 1 && data[1] != 0;
+		
+		if(data.length > 2 && (data[2] & 0xFF) == TAG_FCI) {
+			int[] fci = getValue(data, 2, data.length);
+			if((data[fci[0]] & 0xFF) == TAG_PROPRIETARY) {
+				int[] items = getValue(data, fci[0], fci[1]);
+				parseItems(data, items[0], items[1]);
+			}
+		}
+	}
+	
+	public int getState() {
+		return state;
+	}
+	
+	//Method for checking if the Garbage Collector ran on SELECT
+	public boolean isCollected() {
+		return collected;
+	}
+	
+	//Method for getting the PIN tries left, -1 when not sent
+	public int getPinTries() {
+		return pinTries;
+	}
+	
+	//Method for getting the PUK tries left, -1 when not sent
+	public int getPukTries() {
+		return pukTries;
+	}
+	
+	//Method for checking if a Master Password is stored
+	public boolean hasMasterPW() {
+		return masterPW == safeClient.MASTER_PW_STORED_YES;
+	}
+	
+	//Method for getting the sizes of both Data Files
+	//Returns null when the card does not send them
+	public int[] getFileSizes() {
+		return fileSizes == null ? null : fileSizes.clone();
+	}
+	
+	//Method for getting the File Name
+	//Returns null when the card does not send it
+	public String getFileName() {
+		return fileName;
+	}
+	
+	//Method for reading the status items
+	private void parseItems(byte[] data, int offset, int end) {
+		while(offset < end) {
+			int tag = data[offset] & 0xFF;
+			int[] value = getValue(data, offset, end);
+			int start = value[0];
+			
+			switch(tag) {
+				case TAG_STATE:
+					state = data[start] & 0xFF;
+					break;
+				case TAG_TRIES:
+					pinTries = data[start] & 0xFF;
+					pukTries = data[start + 1] & 0xFF;
+					break;
+				case TAG_MASTER_PW:
+					masterPW = data[start] & 0xFF;
+					break;
+				case TAG_COLLECTED:
+					collected = data[start] != 0;
+					break;
+				case TAG_FILE_SIZES:
+					fileSizes = new int[] {safeClient.getShort(data, start), safeClient.getShort(data, start + 2)};
+					break;
+				case TAG_FILE_NAME:
+					fileName = new String(data, start, value[1] - start, StandardCharsets.UTF_8);
+					break;
+				default:
+					//Unknown items are skipped
+			}
+			offset = value[1];
+		}
+	}
+	
+	//Method for getting the Value of a TLV
+	//Returns Offset and end of the Value
+	private static int[] getValue(byte[] data, int offset, int end) {
+		int length = data[offset + 1] & 0xFF;
+		int start = offset + 2;
+		if(length == 0x81) {
+			length = data[offset + 2] & 0xFF;
+			start++;
+		}
+		if(start + length > end) {
+			throw new IllegalArgumentException("TLV longer than the response");
+		}
+		return new int[] {start, start + length};
+	}
+}
@@ -0,0 +1,292 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import java.nio.ByteBuffer;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+//Counting Channel Class
+//Card channel which counts commands, bytes and time spent in transmit
+//Per INS it also records latency histograms, bytes and status words, exported in the Prometheus text format
+public class countingChannel extends CardChannel {
+	
+	//Upper bounds of the latency buckets in seconds
+	static final double[] BUCKETS = {0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5};
+	
+	//INS with File Data, their throughput is exported
+	static final int[] TRANSFER_INS = {safeClient.INS_UPDATE_BINARY, safeClient.INS_READ_BINARY};
+	
+	private final CardChannel channel;
+	private final String reader;
+	private final AtomicLong commands = new AtomicLong();
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final AtomicLong bytesReceived = new AtomicLong();
+	private final AtomicLong nanos = new AtomicLong();
+	private final insMetrics[] metrics = new insMetrics[256];
+	private long retries;
+	
+	//Create Counting Channel
+	// channel = channel which sends the commands
+	public countingChannel(CardChannel channel) {
+		this(channel, "");
+	}
+	
+	//Create Counting Channel
+	// channel = channel which sends the commands
+	// reader = name of the reader, used as label
+	public countingChannel(CardChannel channel, String reader) {
+		this.channel = channel;
+		this.reader = reader;
+	}
+	
+	@Override
+	public Card getCard() {
+		return channel.getCard();
+	}
+	
+	@Override
+	public int getChannelNumber() {
+		return channel.getChannelNumber();
+	}
+	
+	@Override
+	public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+		long start = System.nanoTime();
+		ResponseAPDU response;
+		try {
+			response = channel.transmit(command);
+		} catch(CardException | RuntimeException e) {
+			count(command.getINS(), System.nanoTime() - start, command.getNc(), 0, -1);
+			throw e;
+		}
+		count(command.getINS(), System.nanoTime() - start, command.getNc(), response.getNr(), response.getSW());
+		return response;
+	}
+	
+	@Override
+	public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+		//Parse the command like the channel does, Lc and Le may be short or extended
+		byte[] bytes = new byte[command.remaining()];
+		command.duplicate().get(bytes);
+		int ins;
+		int length;
+		try {
+			CommandAPDU apdu = new CommandAPDU(bytes);
+			ins = apdu.getINS();
+			length = apdu.getNc();
+		} catch(IllegalArgumentException e) {
+			ins = bytes.length > 1 ? bytes[1] & 0xFF : 0;
+			length = 0;
+		}
+		
+		int position = response.position();
+		long start = System.nanoTime();
+		int received;
+		try {
+			received = channel.transmit(command, response);
+		} catch(CardException | RuntimeException e) {
+			count(ins, System.nanoTime() - start, length, 0, -1);
+			throw e;
+		}
+		
+		int sw = received >= 2 ? ((response.get(position + received - 2) & 0xFF) << 8) | (response.get(position + received - 1) & 0xFF) : -1;
+		count(ins, System.nanoTime() - start, length, Math.max(0, received - 2), sw);
+		return received;
+	}
+	
+	@Override
+	public void close() throws CardException {
+		channel.close();
+	}
+	
+	//Method for getting the number of commands
+	public long getCommands() {
+		return commands.get();
+	}
+	
+	//Method for getting the bytes of command Data
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+	
+	//Method for getting the bytes of response Data
+	public long getBytesReceived() {
+		return bytesReceived.get();
+	}
+	
+	//Method for getting the time spent in transmit
+	public long getNanos() {
+		return nanos.get();
+	}
+	
+	//Method for counting a repeated command
+	//Given to safeClient.setRetryListener
+	public synchronized void countRetry() {
+		retries++;
+	}
+	
+	//Method for getting the bytes per second of an INS
+	//Command and response Data divided by the time in transmit
+	public synchronized double getThroughput(int ins) {
+		insMetrics m = metrics[ins & 0xFF];
+		if(m == null || m.nanos == 0) {
+			return 0.0;
+		}
+		return (m.bytesSent + m.bytesReceived) / (m.nanos / 1e9);
+	}
+	
+	//Method for exporting all metrics in the Prometheus text format
+	public synchronized String export() {
+		StringBuilder out = new StringBuilder();
+		String label = "reader=\"" + escape(reader) + "\"";
+		
+		out.append("# HELP passwordsafe_apdu_latency_seconds Time of one APDU exchange per INS.\n");
+		out.append("# TYPE passwordsafe_apdu_latency_seconds histogram\n");
+		for(int ins = 0; ins < metrics.length; ins++) {
+			insMetrics m = metrics[ins];
+			if(m == null) {
+				continue;
+			}
+			String labels = label + ",ins=\"" + hex(ins) + "\"";
+			long total = 0;
+			for(int i = 0; i < BUCKETS.length; i++) {
+				total += m.buckets[i];
+				out.append("passwordsafe_apdu_latency_seconds_bucket{").append(labels).append(",le=\"").append(BUCKETS[i]).append("\"} ").append(total).append('\n');
+			}
+			out.append("passwordsafe_apdu_latency_seconds_bucket{").append(labels).append(",le=\"+Inf\"} ").append(m.count).append('\n');
+			out.append("passwordsafe_apdu_latency_seconds_sum{").append(labels).append("} ").append(m.nanos / 1e9).append('\n');
+			out.append("passwordsafe_apdu_latency_seconds_count{").append(labels).append("} ").append(m.count).append('\n');
+		}
+		
+		out.append("# HELP passwordsafe_apdu_bytes_total Command and response Data per INS.\n");
+		out.append("# TYPE passwordsafe_apdu_bytes_total counter\n");
+		for(int ins = 0; ins < metrics.length; ins++) {
+			insMetrics m = metrics[ins];
+			if(m == null) {
+				continue;
+			}
+			String labels = label + ",ins=\"" + hex(ins) + "\"";
+			out.append("passwordsafe_apdu_bytes_total{").append(labels).append(",direction=\"sent\"} ").append(m.bytesSent).append('\n');
+			out.append("passwordsafe_apdu_bytes_total{").append(labels).append(",direction=\"received\"} ").append(m.bytesReceived).append('\n');
+		}
+		
+		out.append("# HELP passwordsafe_transfer_bytes_per_second File Data per second of transmit time.\n");
+		out.append("# TYPE passwordsafe_transfer_bytes_per_second gauge\n");
+		for(int ins : TRANSFER_INS) {
+			if(metrics[ins] != null) {
+				out.append("passwordsafe_transfer_bytes_per_second{").append(label).append(",ins=\"").append(hex(ins)).append("\"} ").append(getThroughput(ins)).append('\n');
+			}
+		}
+		
+		out.append("# HELP passwordsafe_apdu_status_total Responses with a status word other than 9000.\n");
+		out.append("# TYPE passwordsafe_apdu_status_total counter\n");
+		for(int ins = 0; ins < metrics.length; ins++) {
+			insMetrics m = metrics[ins];
+			if(m == null) {
+				continue;
+			}
+			for(int sw : m.statusWords.keySet()) {
+				out.append("passwordsafe_apdu_status_total{").append(label).append(",ins=\"").append(hex(ins)).append("\",sw=\"").append(String.format("%04X", sw)).append("\"} ").append(m.statusWords.get(sw)).append('\n');
+			}
+		}
+		
+		out.append("# HELP passwordsafe_apdu_transport_errors_total Exchanges which failed without a response.\n");
+		out.append("# TYPE passwordsafe_apdu_transport_errors_total counter\n");
+		for(int ins = 0; ins < metrics.length; ins++) {
+			insMetrics m = metrics[ins];
+			if(m != null && m.transportErrors > 0) {
+				out.append("passwordsafe_apdu_transport_errors_total{").append(label).append(",ins=\"").append(hex(ins)).append("\"} ").append(m.transportErrors).append('\n');
+			}
+		}
+		
+		out.append("# HELP passwordsafe_apdu_retries_total Commands sent again after a transport error.\n");
+		out.append("# TYPE passwordsafe_apdu_retries_total counter\n");
+		out.append("passwordsafe_apdu_retries_total{").append(label).append("} ").append(retries).append('\n');
+		
+		return out.toString();
+	}
+	
+	//Method for counting one command
+	// sw = Status word, -1 when no response came back
+	private void count(int ins, long time, int sent, int received, int sw) {
+		nanos.addAndGet(time);
+		bytesSent.addAndGet(sent);
+		bytesReceived.addAndGet(received);
+		commands.incrementAndGet();
+		record(ins, time, sent, received, sw);
+	}
+	
+	//Method for recording one exchange per INS
+	private synchronized void record(int ins, long time, int sent, int received, int sw) {
+		insMetrics m = metrics[ins & 0xFF];
+		if(m == null) {
+			m = new insMetrics();
+			metrics[ins & 0xFF] = m;
+		}
+		
+		double seconds = time / 1e9;
+		int bucket = 0;
+		while(bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+			bucket++;
+		}
+		if(bucket < BUCKETS.length) {
+			m.buckets[bucket]++;
+		}
+		m.count++;
+		m.nanos += time;
+		m.bytesSent += sent;
+		m.bytesReceived += received;
+		
+		if(sw < 0) {
+			m.transportErrors++;
+		} else if(sw != safeClient.SW_OK) {
+			m.statusWords.merge(sw, 1L, Long::sum);
+		}
+	}
+	
+	private static String hex(int ins) {
+		return String.format("%02X", ins);
+	}
+	
+	//Method for escaping a label value
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+	
+	//Metrics of one INS
+	private static final class insMetrics {
+		final long[] buckets = new long[BUCKETS.length];
+		final TreeMap<Integer, Long> statusWords = new TreeMap<>();
+		long count;
+		long nanos;
+		long bytesSent;
+		long bytesReceived;
+		long transportErrors;
+	}
+}
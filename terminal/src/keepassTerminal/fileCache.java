@@ -0,0 +1,165 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//File Cache Class
+//LRU cache of File contents, bounded by the bytes of all entries
+//Entries are keyed by card identity and File ID and hold the File state they were read at
+public class fileCache {
+	
+	//Default bound of the cache
+	public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+	
+	private final long maxBytes;
+	private final LinkedHashMap<String, entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+	private long hits;
+	private long misses;
+	
+	//Create File Cache with the default bound
+	public fileCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+	
+	//Create File Cache
+	// maxBytes = bound for the Data of all entries
+	public fileCache(long maxBytes) {
+		if(maxBytes <= 0) {
+			throw new IllegalArgumentException("Bound must be positive");
+		}
+		this.maxBytes = maxBytes;
+	}
+	
+	//Method for getting cached Data
+	//Returns null when nothing is cached or the File changed on the card
+	// state = current state of the File on the card
+	public synchronized byte[] get(String card, fileState state) {
+		String key = getKey(card, state.getFileID());
+		entry cached = entries.get(key);
+		if(cached == null || !cached.state.equals(state)) {
+			if(cached != null) {
+				remove(key);
+			}
+			misses++;
+			return null;
+		}
+		hits++;
+		return cached.data.clone();
+	}
+	
+	//Method for caching Data
+	//Data larger than the bound is not cached
+	public synchronized void put(String card, fileState state, byte[] data) {
+		String key = getKey(card, state.getFileID());
+		remove(key);
+		if(data.length > maxBytes) {
+			return;
+		}
+		
+		entries.put(key, new entry(state, data.clone()));
+		bytes += data.length;
+		
+		//Remove least recently used entries
+		Iterator<Map.Entry<String, entry>> it = entries.entrySet().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			bytes -= it.next().getValue().data.length;
+			it.remove();
+		}
+	}
+	
+	//Method for updating cached Data after a write
+	//Entry is removed when it was not current before the write or does not cover the written range
+	// before = state of the File before the write
+	// state = state of the File after the write
+	public synchronized void update(String card, fileState before, fileState state, int offset, byte[] data) {
+		String key = getKey(card, state.getFileID());
+		entry cached = entries.get(key);
+		if(cached == null) {
+			return;
+		}
+		if(!cached.state.equals(before) || offset < 0 || offset + data.length > cached.data.length || cached.data.length != state.getSize()) {
+			remove(key);
+			return;
+		}
+		
+		System.arraycopy(data, 0, cached.data, offset, data.length);
+		entries.put(key, new entry(state, cached.data));
+	}
+	
+	//Method for removing the entry of a File
+	public synchronized void invalidate(String card, int fileID) {
+		remove(getKey(card, fileID));
+	}
+	
+	//Method for removing all entries of a card
+	public synchronized void invalidate(String card) {
+		Iterator<Map.Entry<String, entry>> it = entries.entrySet().iterator();
+		String prefix = card + "/";
+		while(it.hasNext()) {
+			Map.Entry<String, entry> cached = it.next();
+			if(cached.getKey().startsWith(prefix)) {
+				bytes -= cached.getValue().data.length;
+				it.remove();
+			}
+		}
+	}
+	
+	//Method for getting the bytes of all entries
+	public synchronized long getBytes() {
+		return bytes;
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	//Method for removing one entry
+	private void remove(String key) {
+		entry cached = entries.remove(key);
+		if(cached != null) {
+			bytes -= cached.data.length;
+		}
+	}
+	
+	private static String getKey(String card, int fileID) {
+		return card + "/" + Integer.toHexString(fileID);
+	}
+	
+	//Cached Data with the File state it was read at
+	private static final class entry {
+		final fileState state;
+		final byte[] data;
+		
+		entry(fileState state, byte[] data) {
+			this.state = state;
+			this.data = data;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//File State Class
+//State of one File on the card as sent by INS 48
+//Generation and Digest together tell if the File changed
+public final class fileState {
+	
+	//File IDs of the Applet
+	public static final int keepassFileName = 0x0101;
+	public static final int keepassData1    = 0x0110;
+	public static final int keepassData2    = 0x0111;
+	public static final int EXTRA_FILE_BASE = 0x0200;
+	
+	//Length of one state: ID + Generation + Size + Digest
+	public static final int DIGEST_LENGTH = 8;
+	public static final int STATE_LENGTH = 6 + DIGEST_LENGTH;
+	
+	private final int fileID;
+	private final int generation;
+	private final int size;
+	private final byte[] digest;
+	
+	//Create File State
+	public fileState(int fileID, int generation, int size, byte[] digest) {
+		this.fileID = fileID;
+		this.generation = generation;
+		this.size = size;
+		this.digest = digest.clone();
+	}
+	
+	//Method for parsing the response of INS 48
+	//Response = Generation + [FileID + Generation + Filesize + Digest] for every File
+	//Returns the states by File ID
+	public static Map<Integer, fileState> parse(byte[] data) {
+		Map<Integer, fileState> states = new LinkedHashMap<>();
+		for(int offset = 2; offset + STATE_LENGTH <= data.length; offset += STATE_LENGTH) {
+			fileState state = new fileState(safeClient.getShort(data, offset), safeClient.getShort(data, offset + 2),
+					safeClient.getShort(data, offset + 4), Arrays.copyOfRange(data, offset + 6, offset + STATE_LENGTH));
+			states.put(state.fileID, state);
+		}
+		return states;
+	}
+	
+	//Method for getting the File ID of a P2 value
+	// file = P2 of the File
+	public static int getFileID(int file) {
+		if(file == safeClient.FILE_DATA1) {
+			return keepassData1;
+		} else if(file == safeClient.FILE_DATA2) {
+			return keepassData2;
+		}
+		return EXTRA_FILE_BASE | file;
+	}
+	
+	public int getFileID() {
+		return fileID;
+	}
+	
+	public int getGeneration() {
+		return generation;
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	public byte[] getDigest() {
+		return digest.clone();
+	}
+	
+	//Method for checking if two states belong to the same content
+	@Override
+	public boolean equals(Object other) {
+		if(!(other instanceof fileState)) {
+			return false;
+		}
+		fileState state = (fileState) other;
+		return fileID == state.fileID && generation == state.generation && size == state.size && Arrays.equals(digest, state.digest);
+	}
+	
+	@Override
+	public int hashCode() {
+		return 31 * (31 * fileID + generation) + Arrays.hashCode(digest);
+	}
+}
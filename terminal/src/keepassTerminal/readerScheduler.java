@@ -0,0 +1,224 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+
+//Reader Scheduler Class
+//Watches all readers and opens one session with its own thread per inserted card
+//Bulk operations run on all cards in parallel
+//A card inserted into a reader with a session gets a new session, also when the swap fell between two checks
+//Session threads are virtual when the runtime has them. A PC/SC call is a native call and pins the
+//carrier thread until the card answers, so at most as many readers as carriers transfer at the same time.
+//With more readers than CPU cores, give the scheduler a factory for platform threads, e.g. Executors.defaultThreadFactory().
+public class readerScheduler implements AutoCloseable {
+	
+	//Time between checks of the readers
+	public static final long POLL_MILLIS = 500;
+	
+	private final CardTerminals terminals;
+	private final ThreadFactory threads;
+	private final Map<String, readerSession> sessions = new ConcurrentHashMap<>();
+	private final Thread monitor;
+	private volatile boolean running;
+	
+	//Create Reader Scheduler for the readers of the system
+	public readerScheduler() {
+		this(TerminalFactory.getDefault().terminals());
+	}
+	
+	//Create Reader Scheduler
+	// terminals = readers which are watched
+	public readerScheduler(CardTerminals terminals) {
+		this(terminals, getThreadFactory());
+	}
+	
+	//Create Reader Scheduler
+	// terminals = readers which are watched
+	// threads = factory for the session threads
+	public readerScheduler(CardTerminals terminals, ThreadFactory threads) {
+		this.terminals = terminals;
+		this.threads = threads;
+		this.monitor = new Thread(this::watch, "readerScheduler");
+		this.monitor.setDaemon(true);
+	}
+	
+	//Method for starting to watch the readers
+	public void start() throws CardException {
+		running = true;
+		update();
+		monitor.start();
+	}
+	
+	//Method for getting the open sessions
+	public List<readerSession> getSessions() {
+		return new ArrayList<>(sessions.values());
+	}
+	
+	//Method for running an operation on every card
+	//Every card runs the operation on its own session thread
+	// operation = operation started with the client of one card
+	//Result = result per reader name, failed readers complete exceptionally
+	public <T> Map<String, CompletableFuture<T>> runOnAll(Function<safeClient, CompletableFuture<T>> operation) {
+		Map<String, CompletableFuture<T>> results = new LinkedHashMap<>();
+		for(readerSession session : sessions.values()) {
+			if(!session.isOpen()) {
+				continue;
+			}
+			CompletableFuture<T> result;
+			try {
+				result = operation.apply(session.getClient());
+			} catch(RuntimeException e) {
+				result = CompletableFuture.failedFuture(e);
+			}
+			results.put(session.getName(), result);
+		}
+		return results;
+	}
+	
+	//Method for waiting for all results of a bulk operation
+	public static <T> CompletableFuture<Void> allOf(Map<String, CompletableFuture<T>> results) {
+		return CompletableFuture.allOf(results.values().toArray(new CompletableFuture<?>[0]));
+	}
+	
+	//Method for getting the throughput report of all readers
+	//One line per reader
+	public String getReport() {
+		StringBuilder report = new StringBuilder();
+		for(readerSession session : sessions.values()) {
+			report.append(session.getReport()).append(System.lineSeparator());
+		}
+		return report.toString();
+	}
+	
+	//Method for stopping the scheduler and closing all sessions
+	@Override
+	public void close() {
+		running = false;
+		monitor.interrupt();
+		for(readerSession session : sessions.values()) {
+			session.close();
+		}
+		sessions.clear();
+	}
+	
+	//Method for watching the readers, runs on the monitor thread
+	private void watch() {
+		while(running) {
+			try {
+				terminals.waitForChange(POLL_MILLIS);
+				update();
+			} catch(CardException e) {
+				//Reader list not available, try again
+				sleep();
+			}
+		}
+	}
+	
+	//Method for opening sessions for new cards and closing sessions of removed cards
+	//A reader with a card inserted since the last check gets a new session, the old card may be gone
+	private void update() throws CardException {
+		List<CardTerminal> present = terminals.list(CardTerminals.State.CARD_PRESENT);
+		List<String> inserted = new ArrayList<>();
+		for(CardTerminal terminal : terminals.list(CardTerminals.State.CARD_INSERTION)) {
+			inserted.add(terminal.getName());
+		}
+		
+		List<String> names = new ArrayList<>();
+		for(CardTerminal terminal : present) {
+			String name = terminal.getName();
+			names.add(name);
+			
+			readerSession session = sessions.get(name);
+			if(session != null && inserted.contains(name)) {
+				sessions.remove(name);
+				session.close();
+				session = null;
+			}
+			if(session == null) {
+				open(terminal);
+			}
+		}
+		
+		for(readerSession session : sessions.values()) {
+			if(!names.contains(session.getName())) {
+				sessions.remove(session.getName());
+				session.close();
+			}
+		}
+	}
+	
+	//Method for opening the session of one card
+	//Cards without the Applet are skipped until they are inserted again
+	private void open(CardTerminal terminal) {
+		readerSession session;
+		try {
+			session = new readerSession(terminal, threads);
+		} catch(CardException e) {
+			return;
+		}
+		
+		sessions.put(session.getName(), session);
+		session.open().exceptionally(e -> {
+			session.close();
+			return null;
+		});
+	}
+	
+	//Method for waiting before the next check
+	private void sleep() {
+		try {
+			Thread.sleep(POLL_MILLIS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	//Method for getting the factory for session threads
+	//Virtual threads when the runtime has them, daemon threads otherwise
+	public static ThreadFactory getThreadFactory() {
+		try {
+			Class<?> type = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = type.getMethod("name", String.class, long.class).invoke(builder, "reader-", 0L);
+			return (ThreadFactory) type.getMethod("factory").invoke(builder);
+		} catch(ReflectiveOperationException | RuntimeException e) {
+			return runnable -> {
+				Thread thread = new Thread(runnable, "reader");
+				thread.setDaemon(true);
+				return thread;
+			};
+		}
+	}
+}
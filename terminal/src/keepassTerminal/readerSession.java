@@ -0,0 +1,123 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+//Reader Session Class
+//One connected card with its own thread, channel and client
+public class readerSession implements AutoCloseable {
+	
+	private final CardTerminal terminal;
+	private final Card card;
+	private final countingChannel channel;
+	private final ExecutorService executor;
+	private final safeClient client;
+	private final long started = System.nanoTime();
+	
+	//Create Reader Session
+	//Connects to the card, the Applet is selected on the session thread
+	// terminal = reader with a card
+	// threads = factory for the session thread
+	public readerSession(CardTerminal terminal, ThreadFactory threads) throws CardException {
+		this.terminal = terminal;
+		this.card = terminal.connect("*");
+		this.channel = new countingChannel(card.getBasicChannel(), terminal.getName());
+		this.executor = Executors.newSingleThreadExecutor(threads);
+		this.client = new safeClient(channel, executor);
+		client.setRetryListener(channel::countRetry);
+	}
+	
+	//Method for selecting the Applet
+	public CompletableFuture<Integer> open() {
+		return client.select();
+	}
+	
+	//Method for checking if the session takes commands
+	public boolean isOpen() {
+		return !executor.isShutdown();
+	}
+	
+	//Method for getting the reader name
+	public String getName() {
+		return terminal.getName();
+	}
+	
+	//Method for getting the reader
+	public CardTerminal getTerminal() {
+		return terminal;
+	}
+	
+	//Method for getting the client of the card
+	public safeClient getClient() {
+		return client;
+	}
+	
+	//Method for getting the counted channel
+	public countingChannel getChannel() {
+		return channel;
+	}
+	
+	//Method for getting the throughput report of the reader
+	//Report = name, commands, bytes sent and received, time in transmit and bytes per second
+	public String getReport() {
+		long nanos = channel.getNanos();
+		long bytes = channel.getBytesSent() + channel.getBytesReceived();
+		double seconds = nanos / 1e9;
+		
+		return String.format("%s: %d commands, %d bytes sent, %d bytes received, %.3f s in transmit of %.3f s, %.0f B/s",
+				getName(), channel.getCommands(), channel.getBytesSent(), channel.getBytesReceived(),
+				seconds, (System.nanoTime() - started) / 1e9, seconds > 0 ? bytes / seconds : 0.0);
+	}
+	
+	//Method for getting the metrics of the reader in the Prometheus text format
+	public String getMetrics() {
+		return channel.export();
+	}
+	
+	//Method for closing the session
+	//Commands already queued are finished first, then the card is disconnected
+	@Override
+	public void close() {
+		if(!isOpen()) {
+			return;
+		}
+		try {
+			executor.execute(() -> {
+				try {
+					card.disconnect(false);
+				} catch(CardException e) {
+					//Card was removed
+				}
+			});
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
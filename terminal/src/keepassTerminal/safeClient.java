@@ -0,0 +1,497 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+//Safe Client Class
+//Host side client for the passwordSafe Applet
+//Every operation runs on the executor of the client, so APDUs of one channel never overlap
+public class safeClient implements AutoCloseable {
+	
+	//AID of the Applet
+	public static final byte[] APPLET_AID = {(byte)0x11, (byte)0x22, (byte)0x33, (byte)0x44, (byte)0x55, (byte)0x66, (byte)0x77, (byte)0x88, (byte)0x00};
+	
+	//Class Byte
+	static final int CLA_NUMBER = 0x80;
+	
+	//INS Bytes
+	static final int INS_PIN_VERIFY    = 0x21;
+	static final int INS_PW_SET        = 0x30;
+	static final int INS_PW_GET        = 0x31;
+	static final int INS_CREATE_FILE   = 0x40;
+	static final int INS_UPDATE_BINARY = 0x41;
+	static final int INS_READ_BINARY   = 0x42;
+	static final int INS_FILE_SIZE     = 0x44;
+	static final int INS_GET_FILE_NAME = 0x45;
+	static final int INS_GET_FILE_STATE = 0x48;
+	static final int INS_CAPABILITIES  = 0x54;
+	static final int INS_STATUS_POLICY = 0x55;
+	
+	//P2 for the Data Files
+	public static final int FILE_DATA1 = 0x01;
+	public static final int FILE_DATA2 = 0x02;
+	
+	//Values for the Master Password State
+	public static final int MASTER_PW_STORED_YES = 0x01;
+	public static final int MASTER_PW_STORED_NO  = 0x02;
+	
+	//P1 and P2 for reading both Data Files in one response
+	static final int P1_READ_BOTH = 0x05;
+	static final int P2_BOTH_FILES = 0x03;
+	static final int BOTH_HEADER_LENGTH = 4;
+	
+	//Status word for success
+	static final int SW_OK = 0x9000;
+	
+	//Chunk sizes before the Capabilities are known
+	//Reads are limited by the Filesystem, writes by Lc minus the FileOffset
+	public static final int DEFAULT_READ_CHUNK  = 0xFA;
+	public static final int DEFAULT_WRITE_CHUNK = 0xFD;
+	//Largest chunks of short APDUs
+	public static final int SHORT_READ_CHUNK  = 0x100;
+	public static final int SHORT_WRITE_CHUNK = 0xFD;
+	//Tries for commands which can be repeated without changing the card
+	public static final int DEFAULT_RETRIES = 2;
+	
+	private final CardChannel channel;
+	private final Executor executor;
+	private final ExecutorService ownExecutor;
+	private volatile int readChunk = DEFAULT_READ_CHUNK;
+	private volatile int writeChunk = DEFAULT_WRITE_CHUNK;
+	private volatile int retries = DEFAULT_RETRIES;
+	//Largest chunk of an extended APDU set by the host, the card limits are used without one
+	private volatile int maxExtendedChunk = Integer.MAX_VALUE;
+	private volatile Runnable retryListener;
+	
+	//Create Safe Client with its own executor thread
+	// channel = open channel to the card
+	public safeClient(CardChannel channel) {
+		this.ownExecutor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "safeClient");
+			thread.setDaemon(true);
+			return thread;
+		});
+		this.channel = channel;
+		this.executor = ownExecutor;
+	}
+	
+	//Create Safe Client
+	// channel = open channel to the card
+	// executor = executor running the commands, must not run two commands at once
+	public safeClient(CardChannel channel, Executor executor) {
+		this.channel = channel;
+		this.executor = executor;
+		this.ownExecutor = null;
+	}
+	
+	//Method for setting the chunk sizes for large Files
+	public void setChunkSizes(int readChunk, int writeChunk) {
+		if(readChunk <= 0 || writeChunk <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
+		this.readChunk = readChunk;
+		this.writeChunk = writeChunk;
+	}
+	
+	//Method for setting the largest chunk of an extended APDU
+	//Limits adaptChunkSizes for readers with small buffers
+	public void setMaxExtendedChunk(int maxExtendedChunk) {
+		this.maxExtendedChunk = Math.max(SHORT_READ_CHUNK, maxExtendedChunk);
+	}
+	
+	//Method for getting the chunk size of reads
+	public int getReadChunk() {
+		return readChunk;
+	}
+	
+	//Method for getting the chunk size of writes
+	public int getWriteChunk() {
+		return writeChunk;
+	}
+	
+	//Method for setting the tries of repeatable commands
+	public void setRetries(int retries) {
+		this.retries = Math.max(0, retries);
+	}
+	
+	//Method for setting a listener which is called for every repeated command
+	// listener = listener, null for none
+	public void setRetryListener(Runnable listener) {
+		this.retryListener = listener;
+	}
+	
+	//Method for getting the channel
+	public CardChannel getChannel() {
+		return channel;
+	}
+	
+	//Method for selecting the Applet
+	//Result = State of the Applet
+	public CompletableFuture<Integer> select() {
+		return submit(() -> {
+			ResponseAPDU response = channel.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, APPLET_AID, 256));
+			check(0xA4, response);
+			return response.getData()[0] & 0xFF;
+		});
+	}
+	
+	//Method for selecting the Applet and getting the card status
+	//State, tries, Master PW state, File sizes and File Name come in one exchange
+	public CompletableFuture<cardStatus> selectStatus() {
+		return submit(() -> {
+			ResponseAPDU response = channel.transmit(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, APPLET_AID, 256));
+			check(0xA4, response);
+			return new cardStatus(response.getData());
+		});
+	}
+	
+	//Method for setting if File sizes and File Name are sent on SELECT
+	public CompletableFuture<Void> setStatusPublic(boolean visible) {
+		return submit(() -> {
+			transmit(INS_STATUS_POLICY, visible ? 0x01 : 0x00, 0x00, null, 0);
+			return null;
+		});
+	}
+	
+	//Method for PIN verification
+	//Result = Master PW state
+	public CompletableFuture<Integer> verify(byte[] pin) {
+		byte[] data = pin.clone();
+		return submit(() -> transmit(INS_PIN_VERIFY, 0x01, 0x00, data, 1)[0] & 0xFF);
+	}
+	
+	//Method for saving the Master Password
+	public CompletableFuture<Void> setMasterPW(byte[] password) {
+		byte[] data = password.clone();
+		return submit(() -> {
+			transmit(INS_PW_SET, 0x02, 0x01, data, 0);
+			return null;
+		});
+	}
+	
+	//Method for reading the Master Password
+	public CompletableFuture<byte[]> getMasterPW() {
+		return submit(() -> repeat(() -> transmit(INS_PW_GET, 0x02, 0x02, null, 256)));
+	}
+	
+	//Method for creating both Data Files and the File Name
+	public CompletableFuture<Void> createFiles(int size1, int size2, String name) {
+		byte[] nameData = name.getBytes(StandardCharsets.UTF_8);
+		byte[] data = new byte[4 + nameData.length];
+		setShort(data, 0, size1);
+		setShort(data, 2, size2);
+		System.arraycopy(nameData, 0, data, 4, nameData.length);
+		
+		return submit(() -> {
+			transmit(INS_CREATE_FILE, 0x01, 0x01, data, 0);
+			return null;
+		});
+	}
+	
+	//Method for creating an additional File
+	// file = P2 of the File, 0x20 to 0x7F
+	public CompletableFuture<Void> createFile(int file, int size) {
+		byte[] data = new byte[2];
+		setShort(data, 0, size);
+		
+		return submit(() -> {
+			transmit(INS_CREATE_FILE, 0x01, file, data, 0);
+			return null;
+		});
+	}
+	
+	//Method for writing Data to a File
+	//Data is sent in chunks, every chunk carries its FileOffset
+	// file = P2 of the File
+	public CompletableFuture<Void> writeFile(int file, int offset, byte[] data) {
+		byte[] copy = data.clone();
+		return submit(() -> {
+			writeChunks(file, offset, copy);
+			return null;
+		});
+	}
+	
+	//Method for reading Data from a File
+	//Data is read in chunks, a failed chunk is read again
+	// file = P2 of the File
+	public CompletableFuture<byte[]> readFile(int file, int offset, int length) {
+		return submit(() -> readChunks(file, offset, length));
+	}
+	
+	//Method for reading a whole Data File
+	// file = FILE_DATA1 or FILE_DATA2
+	public CompletableFuture<byte[]> readFile(int file) {
+		return submit(() -> {
+			int[] sizes = repeat(this::transmitFileSizes);
+			return readChunks(file, 0, sizes[file == FILE_DATA1 ? 0 : 1]);
+		});
+	}
+	
+	//Method for reading both Data Files
+	//Every response carries parts of both Files, so both need about half the commands
+	//Result = Data of File 1 and File 2
+	public CompletableFuture<byte[][]> readBothFiles() {
+		return submit(() -> {
+			int[] sizes = repeat(this::transmitFileSizes);
+			return readBothChunks(sizes[0], sizes[1]);
+		});
+	}
+	
+	//Method for getting the File sizes
+	//Result = size of Data File 1 and Data File 2
+	public CompletableFuture<int[]> getFileSizes() {
+		return submit(() -> repeat(this::transmitFileSizes));
+	}
+	
+	//Method for getting the File Name
+	public CompletableFuture<String> getFileName() {
+		return submit(() -> new String(repeat(() -> transmit(INS_GET_FILE_NAME, 0x01, 0x01, null, 256)), StandardCharsets.UTF_8));
+	}
+	
+	//Method for getting the state of all Files
+	//Result = Generation and Digest per File ID, see fileState
+	public CompletableFuture<Map<Integer, fileState>> getFileStates() {
+		return submit(() -> repeat(this::transmitFileStates));
+	}
+	
+	//Method for getting the Capabilities of the card
+	public CompletableFuture<cardCapabilities> getCapabilities() {
+		return submit(() -> new cardCapabilities(repeat(() -> transmit(INS_CAPABILITIES, 0x00, 0x00, null, 256))));
+	}
+	
+	//Method for choosing the chunk sizes from the Capabilities of the card
+	//Chunks start at the limits the card reports for its buffer
+	//Extended APDUs are used when card and protocol allow them, short APDUs otherwise
+	//A chunk the reader does not take is halved later, see readChunks and writeChunks
+	public CompletableFuture<cardCapabilities> adaptChunkSizes() {
+		return getCapabilities().thenApply(capabilities -> {
+			int maxRead = capabilities.getMaxRead();
+			int maxWrite = capabilities.getMaxWrite();
+			if(maxRead <= 0 || maxWrite <= 0) {
+				setChunkSizes(DEFAULT_READ_CHUNK, DEFAULT_WRITE_CHUNK);
+			} else if(capabilities.canUseExtendedLength()) {
+				int max = maxExtendedChunk;
+				setChunkSizes(Math.min(maxRead, max), Math.min(maxWrite, max));
+			} else {
+				setChunkSizes(Math.min(maxRead, SHORT_READ_CHUNK), Math.min(maxWrite, SHORT_WRITE_CHUNK));
+			}
+			return capabilities;
+		});
+	}
+	
+	//Method for closing the own executor
+	//The channel stays open
+	@Override
+	public void close() {
+		if(ownExecutor != null) {
+			ownExecutor.shutdown();
+		}
+	}
+	
+	//Method for writing chunks, runs on the executor
+	//A chunk larger than a short APDU is sent again at half size when it was not taken
+	void writeChunks(int file, int offset, byte[] data) throws CardException {
+		int done = 0;
+		while(done < data.length) {
+			int length = Math.min(writeChunk, data.length - done);
+			byte[] command = new byte[2 + length];
+			setShort(command, 0, offset + done);
+			System.arraycopy(data, done, command, 2, length);
+			
+			try {
+				transmit(INS_UPDATE_BINARY, 0x03, file, command, 0);
+			} catch(CardException e) {
+				if(length <= SHORT_WRITE_CHUNK || !isLengthError(e)) {
+					throw e;
+				}
+				writeChunk = Math.max(SHORT_WRITE_CHUNK, length / 2);
+				continue;
+			}
+			done += length;
+		}
+	}
+	
+	//Method for reading chunks, runs on the executor
+	//A chunk larger than a short APDU is read again at half size when it was not taken
+	byte[] readChunks(int file, int offset, int length) throws CardException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+		int done = 0;
+		while(done < length) {
+			int part = Math.min(readChunk, length - done);
+			byte[] command = new byte[4];
+			setShort(command, 0, offset + done);
+			setShort(command, 2, part);
+			
+			try {
+				out.writeBytes(repeat(() -> transmit(INS_READ_BINARY, 0x03, file, command, part)));
+			} catch(CardException e) {
+				if(part <= SHORT_READ_CHUNK || !isLengthError(e)) {
+					throw e;
+				}
+				readChunk = Math.max(SHORT_READ_CHUNK, part / 2);
+				continue;
+			}
+			done += part;
+		}
+		return out.toByteArray();
+	}
+	
+	//Method for reading both Data Files in chunks, runs on the executor
+	//Response = Length1 + Length2 + Data of File 1 + Data of File 2
+	byte[][] readBothChunks(int size1, int size2) throws CardException {
+		ByteArrayOutputStream out1 = new ByteArrayOutputStream(size1);
+		ByteArrayOutputStream out2 = new ByteArrayOutputStream(size2);
+		while(out1.size() < size1 || out2.size() < size2) {
+			int chunk = readChunk;
+			int ne = Math.min(chunk, BOTH_HEADER_LENGTH + (size1 - out1.size()) + (size2 - out2.size()));
+			byte[] command = new byte[4];
+			setShort(command, 0, out1.size());
+			setShort(command, 2, out2.size());
+			
+			byte[] data;
+			try {
+				data = repeat(() -> transmit(INS_READ_BINARY, P1_READ_BOTH, P2_BOTH_FILES, command, ne));
+			} catch(CardException e) {
+				if(chunk <= SHORT_READ_CHUNK || !isLengthError(e)) {
+					throw e;
+				}
+				readChunk = Math.max(SHORT_READ_CHUNK, chunk / 2);
+				continue;
+			}
+			
+			int part1 = getShort(data, 0);
+			int part2 = getShort(data, 2);
+			if(part1 + part2 == 0 || data.length != BOTH_HEADER_LENGTH + part1 + part2) {
+				throw new CardException("Wrong response length for both Files");
+			}
+			out1.write(data, BOTH_HEADER_LENGTH, part1);
+			out2.write(data, BOTH_HEADER_LENGTH + part1, part2);
+		}
+		return new byte[][] {out1.toByteArray(), out2.toByteArray()};
+	}
+	
+	//Method for checking if a failed chunk may work when smaller
+	//Transport errors and wrong length status words
+	private static boolean isLengthError(CardException e) {
+		if(!(e instanceof statusException)) {
+			return true;
+		}
+		int sw = ((statusException) e).getSW();
+		return sw == 0x6700 || (sw & 0xFF00) == 0x6C00;
+	}
+	
+	//Method for getting the File sizes, runs on the executor
+	private int[] transmitFileSizes() throws CardException {
+		byte[] data = transmit(INS_FILE_SIZE, 0x03, 0x04, null, 4);
+		return new int[] {getShort(data, 0), getShort(data, 2)};
+	}
+	
+	//Method for getting the state of all Files, runs on the executor
+	Map<Integer, fileState> transmitFileStates() throws CardException {
+		return fileState.parse(transmit(INS_GET_FILE_STATE, 0x03, 0x00, null, 256));
+	}
+	
+	//Method for sending one command and checking the status word
+	//Returns the Data of the response
+	byte[] transmit(int ins, int p1, int p2, byte[] data, int ne) throws CardException {
+		CommandAPDU command;
+		if(data == null || data.length == 0) {
+			command = ne > 0 ? new CommandAPDU(CLA_NUMBER, ins, p1, p2, ne) : new CommandAPDU(CLA_NUMBER, ins, p1, p2);
+		} else {
+			command = ne > 0 ? new CommandAPDU(CLA_NUMBER, ins, p1, p2, data, ne) : new CommandAPDU(CLA_NUMBER, ins, p1, p2, data);
+		}
+		
+		ResponseAPDU response = channel.transmit(command);
+		check(ins, response);
+		return response.getData();
+	}
+	
+	//Method for running a repeatable command
+	//Only transport errors are repeated, status words are final
+	<T> T repeat(cardTask<T> task) throws CardException {
+		for(int attempt = 0; ; attempt++) {
+			try {
+				return task.run();
+			} catch(statusException e) {
+				throw e;
+			} catch(CardException e) {
+				if(attempt >= retries) {
+					throw e;
+				}
+				Runnable listener = retryListener;
+				if(listener != null) {
+					listener.run();
+				}
+			}
+		}
+	}
+	
+	//Method for running a task on the executor
+	<T> CompletableFuture<T> submit(cardTask<T> task) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return task.run();
+			} catch(CardException e) {
+				throw new CompletionException(e);
+			}
+		}, executor);
+	}
+	
+	//Method for checking the status word
+	private static void check(int ins, ResponseAPDU response) throws statusException {
+		if(response.getSW() != SW_OK) {
+			throw new statusException(ins, response.getSW());
+		}
+	}
+	
+	//Method for writing a short in big endian
+	static void setShort(byte[] out, int offset, int value) {
+		if(value < 0 || value > 0x7FFF) {
+			throw new IllegalArgumentException("Value out of range: " + value);
+		}
+		out[offset] = (byte)(value >> 8);
+		out[offset + 1] = (byte)value;
+	}
+	
+	//Method for reading a short in big endian
+	static int getShort(byte[] in, int offset) {
+		return ((in[offset] & 0xFF) << 8) | (in[offset + 1] & 0xFF);
+	}
+	
+	//Command running on the executor
+	interface cardTask<T> {
+		T run() throws CardException;
+	}
+}
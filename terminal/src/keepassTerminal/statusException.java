@@ -0,0 +1,67 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import javax.smartcardio.CardException;
+
+//Status Exception Class
+//Thrown when the Applet answers with a status word other than 9000
+public class statusException extends CardException {
+	
+	private static final long serialVersionUID = 1L;
+	
+	//Status words of the Applet
+	public static final int SW_PIN_TRIES_REMAINING = 0x63C0;
+	public static final int SW_CARD_LOCKED = 0x6250;
+	public static final int SW_PUK_CORRECT = 0x9090;
+	
+	private final int ins;
+	private final int sw;
+	
+	//Create Status Exception
+	// ins = INS of the command
+	// sw = Status word of the response
+	public statusException(int ins, int sw) {
+		super(String.format("INS %02X failed with SW %04X", ins, sw));
+		this.ins = ins;
+		this.sw = sw;
+	}
+	
+	//Method for getting the INS of the command
+	public int getIns() {
+		return ins;
+	}
+	
+	//Method for getting the status word
+	public int getSW() {
+		return sw;
+	}
+	
+	//Method for getting the PIN or PUK tries left
+	//Returns -1 when the status word carries no tries
+	public int getTriesRemaining() {
+		if((sw & 0xFFF0) == SW_PIN_TRIES_REMAINING) {
+			return sw & 0x000F;
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,355 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassSafe;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.smartcardio.ResponseAPDU;
+
+import javacard.framework.AID;
+import javacard.framework.JCSystem;
+
+import org.junit.Test;
+
+import com.licel.jcardsim.base.SimulatorRuntime;
+import com.licel.jcardsim.base.TransientMemory;
+import com.licel.jcardsim.smartcardio.CardSimulator;
+
+//Test that the command handlers do not allocate memory
+//jCardSim reports a constant free memory, so this runtime measures it and the test reads it
+//with JCSystem.getAvailableMemory, below the 0x7FFF limit of Java Card 2.2.2
+//Transient memory = arrays made by the Applet
+//Persistent memory = every object seen in the Applet after a command, garbage stays counted
+//until the Garbage Collector runs, like on a card
+//An object which is dropped within the same command is not seen
+public class allocationTest {
+	
+	//Free memory of the simulated card, below the 0x7FFF limit
+	private static final int PERSISTENT_LIMIT = 0x6000;
+	private static final int TRANSIENT_LIMIT = 0x1000;
+	//Size counted for an object which is not an array
+	private static final int OBJECT_SIZE = 16;
+	//Rounds over all handlers
+	private static final int ROUNDS = 50;
+	
+	private static final byte[] SECRET = "master secret".getBytes();
+	
+	//Transient Memory counting every array of the Applet
+	static class countingMemory extends TransientMemory {
+		final Set<Object> arrays = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		int bytes;
+		
+		@Override
+		protected void storeArray(Object array, byte event) {
+			if(!isSimulatorCrypto()) {
+				arrays.add(array);
+				bytes += size(array);
+			}
+			super.storeArray(array, event);
+		}
+		
+		//Cipher and Key objects of jCardSim create buffers on init, a card does not
+		private static boolean isSimulatorCrypto() {
+			for(StackTraceElement element : new Throwable().getStackTrace()) {
+				if(element.getClassName().startsWith("com.licel.jcardsim.crypto.")) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+	
+	//Runtime reporting the measured memory
+	static class countingRuntime extends SimulatorRuntime {
+		final countingMemory memory;
+		//Persistent objects seen in the Applet, with their size
+		final Map<Object, Integer> persistent = new IdentityHashMap<>();
+		
+		countingRuntime(countingMemory memory) {
+			super(memory);
+			this.memory = memory;
+		}
+		
+		//Objects stored by a command are seen after it
+		@Override
+		public byte[] transmitCommand(byte[] command) {
+			byte[] response = super.transmitCommand(command);
+			persistent.putAll(reachable());
+			return response;
+		}
+		
+		//Only the garbage is given back
+		@Override
+		public void requestObjectDeletion() {
+			super.requestObjectDeletion();
+			persistent.keySet().retainAll(reachable().keySet());
+		}
+		
+		@Override
+		public short getAvailablePersistentMemory() {
+			int used = 0;
+			for(int size : persistent.values()) {
+				used += size;
+			}
+			return (short)Math.max(0, PERSISTENT_LIMIT - used);
+		}
+		
+		@Override
+		public short getAvailableTransientDeselectMemory() {
+			return (short)Math.max(0, TRANSIENT_LIMIT - memory.bytes);
+		}
+		
+		@Override
+		public short getAvailableTransientResetMemory() {
+			return getAvailableTransientDeselectMemory();
+		}
+		
+		//Method for getting all persistent objects of the Applet
+		//Objects of the Applet are followed, objects of the framework are counted as a whole
+		private Map<Object, Integer> reachable() {
+			Map<Object, Integer> found = new IdentityHashMap<>();
+			Deque<Object> open = new ArrayDeque<>();
+			open.add(getApplet(new AID(simulatedCard.AID_BYTES, (short)0, (byte)simulatedCard.AID_BYTES.length)));
+			
+			while(!open.isEmpty()) {
+				Object object = open.poll();
+				if(found.containsKey(object) || memory.arrays.contains(object)) {
+					continue;
+				}
+				Class<?> type = object.getClass();
+				found.put(object, type.isArray() ? size(object) : OBJECT_SIZE);
+				
+				if(type.isArray() && !type.getComponentType().isPrimitive()) {
+					for(Object element : (Object[])object) {
+						if(element != null) {
+							open.add(element);
+						}
+					}
+				} else if(type.getName().startsWith("keepassSafe.")) {
+					for(Object value : fields(object)) {
+						open.add(value);
+					}
+				}
+			}
+			return found;
+		}
+	}
+	
+	//Method for getting the size of an array on a card
+	private static int size(Object array) {
+		Class<?> type = array.getClass().getComponentType();
+		int element = type == byte.class || type == boolean.class ? 1 : 2;
+		return Array.getLength(array) * element;
+	}
+	
+	//Method for getting the object fields of an Applet object
+	private static Iterable<Object> fields(Object object) {
+		List<Object> values = new ArrayList<>();
+		for(Class<?> type = object.getClass(); type.getName().startsWith("keepassSafe."); type = type.getSuperclass()) {
+			for(Field field : type.getDeclaredFields()) {
+				if(Modifier.isStatic(field.getModifiers()) || field.getType().isPrimitive()) {
+					continue;
+				}
+				try {
+					field.setAccessible(true);
+					Object value = field.get(object);
+					if(value != null) {
+						values.add(value);
+					}
+				} catch(IllegalAccessException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+		return values;
+	}
+	
+	private countingMemory memory;
+	private simulatedCard card;
+	private byte[] puk;
+	
+	//Method for installing the Applet on the measuring runtime
+	private void install(int arenaSize) {
+		memory = new countingMemory();
+		card = new simulatedCard(new CardSimulator(new countingRuntime(memory)), arenaSize);
+		puk = card.personalise();
+		card.createFiles(600, 40, "safe.kdbx");
+	}
+	
+	//Method for reading the free persistent memory
+	private static int persistent() {
+		short free = JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_PERSISTENT);
+		assertTrue("reading below the limit", free > 0 && free < 0x7FFF);
+		return free;
+	}
+	
+	//Method for reading the free transient memory
+	private static int transientDeselect() {
+		short free = JCSystem.getAvailableMemory(JCSystem.MEMORY_TYPE_TRANSIENT_DESELECT);
+		assertTrue("reading below the limit", free > 0 && free < 0x7FFF);
+		return free;
+	}
+	
+	@Test
+	public void handlersDoNotAllocate() {
+		install(2000);
+		
+		//First round may set up state, like the open Master PW File
+		round();
+		int persistentBefore = persistent();
+		int transientBefore = transientDeselect();
+		
+		for(int i = 0; i < ROUNDS; i++) {
+			round();
+		}
+		
+		assertEquals("persistent memory", persistentBefore, persistent());
+		assertEquals("transient memory", transientBefore, transientDeselect());
+	}
+	
+	//The readings see allocations: a File without Arena is a new array
+	@Test
+	public void allocationsAreSeen() {
+		install(0);
+		int persistentBefore = persistent();
+		int transientBefore = transientDeselect();
+		
+		//Old Master PW array stays as garbage
+		card.ok(0x30, 0x02, 0x01, SECRET, 0);
+		card.ok(0x30, 0x02, 0x01, SECRET, 0);
+		assertEquals(persistentBefore - 2 * SECRET.length, persistent());
+		
+		memory.makeByteArray(16, JCSystem.CLEAR_ON_DESELECT);
+		assertEquals(transientBefore - 16, transientDeselect());
+	}
+	
+	//Method for running every handler once
+	private void round() {
+		byte[] pin = simulatedCard.PIN;
+		
+		//PIN verify plain, padded and framed
+		card.ok(0x21, 0x01, 0x00, pin, 1);
+		card.ok(0x21, 0x01, 0x01, simulatedCard.encrypt(padded(pin)), 1);
+		card.ok(0x21, 0x01, 0x81, simulatedCard.encrypt(simulatedCard.frame(pin)), 1);
+		
+		//PIN change to the same PIN, plain, padded and framed, the new PIN is not verified
+		//The padded variant only takes PINs of full length and refuses this one
+		card.ok(0x22, 0x00, 0x02, concat(Arrays.copyOf(pin, 16), Arrays.copyOf(pin, 16)), 0);
+		card.ok(0x21, 0x01, 0x00, pin, 1);
+		assertEquals(0x6700, card.send(simulatedCard.CLA, 0x22, 0x00, 0x01, simulatedCard.encrypt(concat(padded(pin), padded(pin))), 0).getSW());
+		card.ok(0x22, 0x00, 0x81, simulatedCard.encrypt(simulatedCard.frame(pin, pin)), 0);
+		card.ok(0x21, 0x01, 0x00, pin, 1);
+		
+		//PIN reset with the PUK, plain, padded and framed
+		blockPin();
+		card.ok(0x23, 0x01, 0x02, concat(puk, pin), 0);
+		blockPin();
+		card.ok(0x23, 0x01, 0x01, simulatedCard.encrypt(concat(concat(new byte[8], puk), padded(pin))), 0);
+		blockPin();
+		card.ok(0x23, 0x01, 0x81, simulatedCard.encrypt(simulatedCard.frame(puk, pin)), 0);
+		card.ok(0x21, 0x01, 0x00, pin, 1);
+		
+		//Master PW plain and encrypted
+		card.ok(0x30, 0x02, 0x01, SECRET, 0);
+		card.ok(0x31, 0x02, 0x02, null, 256);
+		byte[] framed = new byte[48];
+		framed[0] = (byte)SECRET.length;
+		System.arraycopy(SECRET, 0, framed, framed.length - SECRET.length, SECRET.length);
+		card.ok(0x30, 0x01, 0x01, simulatedCard.encrypt(framed), 0);
+		card.ok(0x31, 0x01, 0x02, null, 48);
+		card.ok(0x32, 0x02, 0x03, null, 0);
+		
+		//Plain, buffered and chained writes
+		card.write(0x01, 0, simulatedCard.pattern(250, 1));
+		card.write(0x01, 250, simulatedCard.pattern(250, 2));
+		card.ok(0x41, 0x04, 0x01, concat(new byte[] {0, 10}, simulatedCard.pattern(100, 3)), 0);
+		card.ok(0x46, 0x03, 0x00, null, 0);
+		assertEquals(0x9000, card.send(0x90, 0x41, 0x03, 0x02, new byte[22], 0).getSW());
+		assertEquals(0x9000, card.send(0x80, 0x41, 0x03, 0x02, new byte[10], 0).getSW());
+		
+		//Plain and streamed reads
+		card.read(0x01, 100, 200);
+		ResponseAPDU response = card.send(0x80, 0x42, 0x04, 0x01, new byte[2], 256);
+		while(response.getSW1() == 0x61) {
+			response = card.send(0x00, 0xC0, 0x00, 0x00, null, 256);
+		}
+		assertEquals(0x9000, response.getSW());
+		
+		//File information
+		card.ok(0x44, 0x03, 0x04, null, 4);
+		card.ok(0x45, 0x01, 0x01, null, 256);
+		card.ok(0x47, 0x03, 0x01, null, 256);
+		card.ok(0x48, 0x03, 0x00, null, 256);
+		
+		//Additional File in the Arena
+		card.ok(0x40, 0x01, 0x20, new byte[] {0, 100}, 0);
+		card.write(0x20, 0, simulatedCard.pattern(100, 4));
+		card.ok(0x43, 0x03, 0x20, null, 0);
+		
+		//Session, batch, statistics, capabilities, status policy, Garbage Collector
+		card.ok(0x25, 0x00, 0x00, simulatedCard.pattern(16, 5), 16);
+		card.ok(0x50, 0x00, 0x00, new byte[] {0x21, 4, '1', '2', '3', '4', 0x31, 0, 0x44, 0, 0x45, 0}, 256);
+		card.ok(0x53, 0x00, 0x00, null, 256);
+		card.ok(0x54, 0x00, 0x00, null, 256);
+		card.ok(0x55, 0x00, 0x00, null, 0);
+		card.ok(0x51, 0x00, 0x00, null, 1);
+		
+		//Selection
+		card.select();
+	}
+	
+	//Method for blocking the PIN with wrong PINs
+	private void blockPin() {
+		for(int i = 0; i < 3; i++) {
+			card.send(simulatedCard.CLA, 0x21, 0x01, 0x00, new byte[] {'0', '0'}, 1);
+		}
+	}
+	
+	//Method for padding a PIN with 0xFF in front to one block
+	private static byte[] padded(byte[] pin) {
+		byte[] block = new byte[16];
+		Arrays.fill(block, (byte)0xFF);
+		System.arraycopy(pin, 0, block, block.length - pin.length, pin.length);
+		return block;
+	}
+	
+	//Method for joining two arrays
+	private static byte[] concat(byte[] first, byte[] second) {
+		byte[] joined = Arrays.copyOf(first, first.length + second.length);
+		System.arraycopy(second, 0, joined, first.length, second.length);
+		return joined;
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassSafe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+
+//Tests for the Arena: create, delete and compaction
+public class arenaTest {
+	
+	private static final int ARENA_SIZE = 1000;
+	
+	private simulatedCard card;
+	private byte[] puk;
+	
+	@Before
+	public void setUp() {
+		card = new simulatedCard(ARENA_SIZE);
+		puk = card.personalise();
+		card.createFiles(300, 200, "safe.kdbx");
+	}
+	
+	//Method for creating an additional File
+	private int createExtra(int p2, int size) {
+		byte[] data = {(byte)(size >> 8), (byte)size};
+		return card.send(simulatedCard.CLA, 0x40, 0x01, p2, data, 0).getSW();
+	}
+	
+	@Test
+	public void extraFileIsWrittenAndDeleted() {
+		assertEquals(0x9000, createExtra(0x20, 100));
+		byte[] data = simulatedCard.pattern(100, 9);
+		card.write(0x20, 0, data);
+		assertArrayEquals(data, card.read(0x20, 0, 100));
+		
+		//Deleted File has no Data left
+		card.ok(0x43, 0x03, 0x20, null, 0);
+		assertEquals(0x6700, card.send(simulatedCard.CLA, 0x42, 0x03, 0x20, new byte[] {0, 0, 0, 1}, 1).getSW());
+		
+		//Main Files stay
+		card.ok(0x44, 0x03, 0x04, null, 4);
+	}
+	
+	//Free space is only in a hole: Files behind it are moved and keep their Data
+	@Test
+	public void compactionKeepsData() {
+		assertEquals(0x9000, createExtra(0x20, 200));
+		assertEquals(0x9000, createExtra(0x21, 100));
+		
+		byte[] file2 = simulatedCard.pattern(200, 1);
+		byte[] extra = simulatedCard.pattern(100, 2);
+		card.write(0x02, 0, file2);
+		card.write(0x21, 0, extra);
+		
+		//Every started block of a Data File adds 9 Bytes for its Digest
+		//854 Bytes used, 146 free at the end and 209 in the hole
+		card.ok(0x43, 0x03, 0x20, null, 0);
+		assertEquals(0x9000, createExtra(0x22, 300));
+		
+		byte[] added = simulatedCard.pattern(250, 3);
+		card.write(0x22, 50, added);
+		
+		assertArrayEquals(file2, card.read(0x02, 0, 200));
+		assertArrayEquals(extra, card.read(0x21, 0, 100));
+		assertArrayEquals(added, card.read(0x22, 50, 250));
+		
+		//Data of a moved File survives a new selection
+		card.select();
+		card.ok(0x21, 0x01, 0x00, simulatedCard.PIN, 1);
+		assertArrayEquals(extra, card.read(0x21, 0, 100));
+	}
+	
+	@Test
+	public void fullArenaIsRefused() {
+		//536 Bytes used by the main Files, 446 Bytes + 2 Digests fill the rest
+		assertEquals(0x9000, createExtra(0x20, 446));
+		assertEquals(0x6A84, createExtra(0x21, 1));
+	}
+	
+	//Refused Files give their Slot back
+	@Test
+	public void fullArenaKeepsSlots() {
+		assertEquals(0x9000, createExtra(0x20, 446));
+		for(int p2 = 0x21; p2 < 0x30; p2++) {
+			assertEquals(0x6A84, createExtra(p2, 1));
+		}
+		
+		card.ok(0x43, 0x03, 0x20, null, 0);
+		for(int p2 = 0x30; p2 < 0x3B; p2++) {
+			assertEquals(0x9000, createExtra(p2, 10));
+		}
+	}
+	
+	@Test
+	public void wrongSizesAreRefused() {
+		assertEquals(0x6A80, createExtra(0x20, -1));
+		assertEquals(0x6A80, createExtra(0x20, ARENA_SIZE + 1));
+		
+		//No Slot is used by a refused File
+		assertEquals(0x9000, createExtra(0x20, 10));
+	}
+	
+	//A new File never sees Data of a deleted or moved File
+	@Test
+	public void newFileIsZeroed() {
+		assertEquals(0x9000, createExtra(0x20, 100));
+		assertEquals(0x9000, createExtra(0x21, 100));
+		card.write(0x20, 0, simulatedCard.pattern(100, 6));
+		card.write(0x21, 0, simulatedCard.pattern(100, 7));
+		
+		//Deleted File at the end of the Arena
+		card.ok(0x43, 0x03, 0x21, null, 0);
+		assertEquals(0x9000, createExtra(0x21, 100));
+		assertArrayEquals(new byte[100], card.read(0x21, 0, 100));
+		card.write(0x21, 0, simulatedCard.pattern(100, 7));
+		
+		//Hole is closed by moving File 0x21, its old place goes to the new File
+		card.ok(0x43, 0x03, 0x20, null, 0);
+		assertEquals(0x9000, createExtra(0x22, 300));
+		assertArrayEquals(new byte[300], card.read(0x22, 0, 300));
+	}
+	
+	//Files after a card reset never see Data of the old owner
+	@Test
+	public void filesAfterCardResetAreZeroed() {
+		card.write(0x01, 0, simulatedCard.pattern(300, 5));
+		card.ok(0x24, 0x00, 0x00, puk, 0);
+		
+		card.personalise();
+		card.createFiles(300, 200, "new.kdbx");
+		assertArrayEquals(new byte[300], card.read(0x01, 0, 300));
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassSafe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import javacard.framework.ISOException;
+import javacard.security.MessageDigest;
+
+import javax.smartcardio.CommandAPDU;
+
+import org.junit.Test;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+
+//Tests for the File directory
+public class fileSystemTest {
+	
+	//Method for getting the status word of a command
+	private static int getSW(Runnable command) {
+		try {
+			command.run();
+		} catch(ISOException e) {
+			return e.getReason() & 0xFFFF;
+		}
+		return 0x9000;
+	}
+	
+	//Number of Slots comes from the install parameters
+	@Test
+	public void slotsFromInstallParameters() {
+		simulatedCard card = new simulatedCard(new CardSimulator(), 0, 6);
+		card.personalise();
+		card.createFiles(10, 10, "safe.kdbx");
+		
+		//Four Slots are reserved for the KeePass Files
+		byte[] size = {0, 10};
+		assertEquals(0x9000, card.send(simulatedCard.CLA, 0x40, 0x01, 0x20, size, 0).getSW());
+		assertEquals(0x9000, card.send(simulatedCard.CLA, 0x40, 0x01, 0x21, size, 0).getSW());
+		assertEquals(0x6A84, card.send(simulatedCard.CLA, 0x40, 0x01, 0x22, size, 0).getSW());
+	}
+	
+	//File creation also works when the terminal sends extended length
+	@Test
+	public void createFilesWithExtendedLength() {
+		simulatedCard card = new simulatedCard();
+		card.personalise();
+		
+		//CLA INS P1 P2, 00 + two byte Lc, Data without Le
+		byte[] name = "extended.kdbx".getBytes();
+		byte[] command = new byte[7 + 4 + name.length];
+		byte[] header = {(byte)simulatedCard.CLA, 0x40, 0x01, 0x01, 0x00, 0x00, (byte)(4 + name.length), 0x01, 0x00, 0x00, 0x20};
+		System.arraycopy(header, 0, command, 0, header.length);
+		System.arraycopy(name, 0, command, header.length, name.length);
+		assertEquals(0x9000, card.simulator.transmitCommand(new CommandAPDU(command)).getSW());
+		
+		assertArrayEquals(name, card.ok(0x45, 0x01, 0x01, null, 256));
+		assertArrayEquals(new byte[] {0x01, 0x00, 0x00, 0x20}, card.ok(0x44, 0x03, 0x04, null, 4));
+	}
+	
+	//IDs which differ only in the high byte are refused
+	@Test
+	public void idConflictIsRefused() {
+		//Runtime for JCSystem and the crypto classes
+		new CardSimulator();
+		fileSystem files = new fileSystem((short)8, (short)0, MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false), new usageStats(new byte[0]));
+		
+		files.createFile((short)0x0220, (short)10);
+		assertEquals(fileSystem.SW_FILE_ID_CONFLICT, getSW(() -> files.createFile((short)0x0320, (short)10)));
+		assertEquals(fileSystem.SW_FILE_ID_CONFLICT, getSW(() -> files.createFile((short)0x0510, (short)10)));
+		
+		//Refused ID does not hide the File
+		assertEquals(10, files.getFileSize((short)0x0220));
+		files.deleteFile((short)0x0220);
+		files.createFile((short)0x0320, (short)10);
+		assertEquals(10, files.getFileSize((short)0x0320));
+	}
+	
+	//Slot count out of range is refused
+	@Test
+	public void wrongSlotCountIsRefused() {
+		//Runtime for JCSystem and the crypto classes
+		new CardSimulator();
+		try {
+			new fileSystem((short)3, (short)0, MessageDigest.getInstance(MessageDigest.ALG_SHA_256, false), new usageStats(new byte[0]));
+			fail();
+		} catch(ISOException e) {
+			assertEquals(0x6A80, e.getReason());
+		}
+	}
+}
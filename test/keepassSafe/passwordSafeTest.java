@@ -0,0 +1,235 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassSafe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.ResponseAPDU;
+
+import keepassTerminal.cardCapabilities;
+import keepassTerminal.safeClient;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+
+//Tests for chaining, streaming reads and batches
+public class passwordSafeTest {
+	
+	private simulatedCard card;
+	
+	@Before
+	public void setUp() {
+		card = new simulatedCard();
+		card.personalise();
+		card.createFiles(600, 40, "safe.kdbx");
+	}
+	
+	//Chained UPDATE_BINARY: only the first APDU carries the FileOffset
+	@Test
+	public void chainedWriteIsReadBack() {
+		byte[] data = simulatedCard.pattern(500, 3);
+		byte[] first = new byte[2 + 200];
+		first[1] = (byte)10;
+		System.arraycopy(data, 0, first, 2, 200);
+		
+		assertEquals(0x9000, card.send(0x90, 0x41, 0x03, 0x01, first, 0).getSW());
+		assertEquals(0x9000, card.send(0x90, 0x41, 0x03, 0x01, java.util.Arrays.copyOfRange(data, 200, 400), 0).getSW());
+		assertEquals(0x9000, card.send(0x80, 0x41, 0x03, 0x01, java.util.Arrays.copyOfRange(data, 400, 500), 0).getSW());
+		
+		byte[] read = new byte[500];
+		System.arraycopy(card.read(0x01, 10, 250), 0, read, 0, 250);
+		System.arraycopy(card.read(0x01, 260, 250), 0, read, 250, 250);
+		assertArrayEquals(data, read);
+	}
+	
+	//Other commands are refused while a chain runs
+	@Test
+	public void chainMustBeFinished() {
+		byte[] first = new byte[12];
+		assertEquals(0x9000, card.send(0x90, 0x41, 0x03, 0x01, first, 0).getSW());
+		assertEquals(0x6883, card.send(0x80, 0x44, 0x03, 0x04, null, 4).getSW());
+		
+		//Chaining is only allowed for UPDATE_BINARY
+		assertEquals(0x6884, card.send(0x90, 0x42, 0x03, 0x01, new byte[4], 0).getSW());
+	}
+	
+	//Streaming read: rest of the File follows with 61xx and GET RESPONSE
+	@Test
+	public void streamedReadReturnsWholeFile() {
+		byte[] data = simulatedCard.pattern(600, 5);
+		card.write(0x01, 0, java.util.Arrays.copyOfRange(data, 0, 250));
+		card.write(0x01, 250, java.util.Arrays.copyOfRange(data, 250, 500));
+		card.write(0x01, 500, java.util.Arrays.copyOfRange(data, 500, 600));
+		
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ResponseAPDU response = card.send(0x80, 0x42, 0x04, 0x01, new byte[2], 256);
+		int parts = 1;
+		while(response.getSW1() == 0x61) {
+			out.write(response.getData(), 0, response.getNr());
+			int le = response.getSW2() == 0 ? 256 : response.getSW2();
+			response = card.send(0x00, 0xC0, 0x00, 0x00, null, le);
+			parts++;
+		}
+		assertEquals(0x9000, response.getSW());
+		out.write(response.getData(), 0, response.getNr());
+		
+		assertArrayEquals(data, out.toByteArray());
+		assertEquals(3, parts);
+	}
+	
+	//GET RESPONSE without a running stream is refused
+	@Test
+	public void getResponseNeedsStream() {
+		assertEquals(0x6985, card.send(0x00, 0xC0, 0x00, 0x00, null, 256).getSW());
+	}
+	
+	//Batch: [INS][Length][Data]... answered with [INS][Length][SW1][SW2][Data]...
+	@Test
+	public void batchRunsEveryCommand() {
+		card.select();
+		byte[] commands = {
+			0x21, 4, '1', '2', '3', '4',
+			0x44, 0,
+			0x45, 0,
+			0x31, 0
+		};
+		byte[] response = card.ok(0x50, 0x00, 0x00, commands, 256);
+		
+		//PIN verify: Master PW state
+		assertEquals(0x21, response[0]);
+		assertEquals(3, response[1]);
+		assertEquals(0x9000, getShort(response, 2));
+		assertEquals(0x02, response[4]);
+		
+		//File sizes
+		assertEquals(0x44, response[5]);
+		assertEquals(0x9000, getShort(response, 7));
+		assertEquals(600, getShort(response, 9));
+		assertEquals(40, getShort(response, 11));
+		
+		//File Name
+		assertEquals(0x45, response[13]);
+		assertEquals(2 + 9, response[14]);
+		assertEquals("safe.kdbx", new String(response, 17, 9));
+		
+		//No Master PW stored: status word of the command, no Data
+		assertEquals(0x31, response[26]);
+		assertEquals(2, response[27]);
+		assertEquals(0x6986, getShort(response, 28));
+		assertEquals(30, response.length);
+	}
+	
+	//Commands after a wrong PIN in a batch are refused
+	@Test
+	public void batchWithWrongPin() {
+		card.select();
+		byte[] commands = {0x21, 2, '0', '0', 0x44, 0};
+		byte[] response = card.ok(0x50, 0x00, 0x00, commands, 256);
+		
+		assertEquals(0x63C2, getShort(response, 2));
+		assertEquals(0x6982, getShort(response, 6));
+	}
+	
+	//Batch length is only limited by the APDU buffer
+	@Test
+	public void batchLongerThanScratch() {
+		card.select();
+		byte[] commands = new byte[6 + 2 * 20];
+		System.arraycopy(new byte[] {0x21, 4, '1', '2', '3', '4'}, 0, commands, 0, 6);
+		for(int i = 6; i < commands.length; i += 2) {
+			commands[i] = 0x44;
+		}
+		byte[] response = card.ok(0x50, 0x00, 0x00, commands, 256);
+		
+		assertEquals(5 + 20 * 8, response.length);
+		for(int i = 5; i < response.length; i += 8) {
+			assertEquals(0x44, response[i]);
+			assertEquals(0x9000, getShort(response, i + 2));
+			assertEquals(600, getShort(response, i + 4));
+		}
+	}
+	
+	//Responses which would overwrite the commands still to run fail the batch
+	@Test
+	public void batchWithoutResponseSpace() {
+		card.select();
+		cardCapabilities capabilities = new cardCapabilities(card.ok(0x54, 0x00, 0x00, null, 256));
+		
+		//Every command takes 2 bytes and answers with 8
+		int count = Math.min(capabilities.getBufferLength() / 4, 0xFFFF / 2);
+		byte[] commands = new byte[6 + 2 * count];
+		System.arraycopy(new byte[] {0x21, 4, '1', '2', '3', '4'}, 0, commands, 0, 6);
+		for(int i = 6; i < commands.length; i += 2) {
+			commands[i] = 0x44;
+		}
+		assertEquals(0x6700, card.send(simulatedCard.CLA, 0x50, 0x00, 0x00, commands, 256).getSW());
+		
+		//PIN was still verified
+		assertEquals(0x9000, card.send(simulatedCard.CLA, 0x44, 0x03, 0x04, null, 4).getSW());
+	}
+	
+	//Limits of the Capabilities follow from the APDU buffer
+	@Test
+	public void capabilitiesFollowBuffer() {
+		cardCapabilities capabilities = new cardCapabilities(card.ok(0x54, 0x00, 0x00, null, 256));
+		int buffer = capabilities.getBufferLength();
+		
+		if(buffer > 7 + 0xFF) {
+			assertEquals(buffer, capabilities.getMaxRead());
+			assertEquals(buffer - 7 - 2, capabilities.getMaxWrite());
+		} else {
+			assertEquals(Math.min(buffer, 0x100), capabilities.getMaxRead());
+			assertEquals(Math.min(buffer - 5, 0xFF) - 2, capabilities.getMaxWrite());
+		}
+	}
+	
+	//Client starts with the chunk sizes reported by the card
+	@Test
+	public void clientStartsFromCardLimits() throws Exception {
+		Card connected = CardTerminalSimulator.terminal(card.simulator).connect("*");
+		try(safeClient client = new safeClient(connected.getBasicChannel())) {
+			client.select().get();
+			cardCapabilities capabilities = client.adaptChunkSizes().get();
+			
+			int maxRead = capabilities.getMaxRead();
+			int maxWrite = capabilities.getMaxWrite();
+			if(!capabilities.canUseExtendedLength()) {
+				maxRead = Math.min(maxRead, safeClient.SHORT_READ_CHUNK);
+				maxWrite = Math.min(maxWrite, safeClient.SHORT_WRITE_CHUNK);
+			}
+			assertEquals(maxRead, client.getReadChunk());
+			assertEquals(maxWrite, client.getWriteChunk());
+		} finally {
+			connected.disconnect(false);
+		}
+	}
+	
+	static int getShort(byte[] data, int offset) {
+		return ((data[offset] & 0xFF) << 8) | (data[offset + 1] & 0xFF);
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassSafe;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+//Tests for the encrypted PIN commands
+public class pinTest {
+	
+	private static final int CLA = simulatedCard.CLA;
+	private static final byte[] NEW_PIN = {'9', '8', '7', '6'};
+	
+	private simulatedCard card;
+	private byte[] puk;
+	
+	@Before
+	public void setUp() {
+		card = new simulatedCard();
+		puk = card.personalise();
+	}
+	
+	//Method for verifying a PIN, returns the status word
+	private int verify(byte[] pin) {
+		return card.send(CLA, 0x21, 0x01, 0x00, pin, 1).getSW();
+	}
+	
+	@Test
+	public void framedChangePin() {
+		byte[] data = simulatedCard.encrypt(simulatedCard.frame(simulatedCard.PIN, NEW_PIN));
+		assertEquals(0x9000, card.send(CLA, 0x22, 0x00, 0x81, data, 0).getSW());
+		
+		card.select();
+		assertEquals(0x9000, verify(NEW_PIN));
+	}
+	
+	//New PIN shorter than on INIT is refused, old PIN stays
+	@Test
+	public void framedChangePinChecksLength() {
+		byte[] empty = simulatedCard.encrypt(simulatedCard.frame(simulatedCard.PIN, new byte[0]));
+		assertEquals(0x6700, card.send(CLA, 0x22, 0x00, 0x81, empty, 0).getSW());
+		byte[] shortPin = simulatedCard.encrypt(simulatedCard.frame(simulatedCard.PIN, new byte[] {'1'}));
+		assertEquals(0x6700, card.send(CLA, 0x22, 0x00, 0x81, shortPin, 0).getSW());
+		
+		card.select();
+		assertEquals(0x63C0, verify(new byte[0]) & 0xFFF0);
+		card.select();
+		assertEquals(0x9000, verify(simulatedCard.PIN));
+	}
+	
+	//Method for blocking the PIN with wrong tries
+	private void blockPin() {
+		card.select();
+		int sw;
+		do {
+			sw = verify(new byte[] {'0', '0', '0', '0'});
+		} while(sw != 0x63C0 && (sw & 0xFFF0) == 0x63C0);
+		assertEquals(0x63C0, sw);
+	}
+	
+	@Test
+	public void framedResetPin() {
+		blockPin();
+		byte[] data = simulatedCard.encrypt(simulatedCard.frame(puk, NEW_PIN));
+		assertEquals(0x9000, card.send(CLA, 0x23, 0x01, 0x81, data, 0).getSW());
+		
+		card.select();
+		assertEquals(0x9000, verify(NEW_PIN));
+	}
+	
+	//PUK must have its full length, new PIN its minimum length
+	@Test
+	public void framedResetPinChecksLength() {
+		blockPin();
+		byte[] shortPuk = simulatedCard.encrypt(simulatedCard.frame(Arrays.copyOf(puk, 4), NEW_PIN));
+		assertEquals(0x6700, card.send(CLA, 0x23, 0x01, 0x81, shortPuk, 0).getSW());
+		byte[] shortPin = simulatedCard.encrypt(simulatedCard.frame(puk, new byte[] {'1'}));
+		assertEquals(0x6700, card.send(CLA, 0x23, 0x01, 0x81, shortPin, 0).getSW());
+		
+		//PUK only is still checked
+		byte[] pukOnly = simulatedCard.encrypt(simulatedCard.frame(puk));
+		assertEquals(0x9090, card.send(CLA, 0x23, 0x01, 0x81, pukOnly, 0).getSW());
+	}
+}
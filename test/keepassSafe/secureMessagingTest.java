@@ -0,0 +1,237 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassSafe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import javax.smartcardio.ResponseAPDU;
+
+import javacard.framework.ISOException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+//Tests for the Secure Messaging round trip of File transfers
+public class secureMessagingTest {
+	
+	private static final int BLOCK = 16;
+	
+	private simulatedCard card;
+	private byte[] encKey;
+	private byte[] macKey;
+	private int counter;
+	
+	@Before
+	public void setUp() throws Exception {
+		card = new simulatedCard();
+		card.personalise();
+		card.createFiles(400, 40, "safe.kdbx");
+		
+		byte[] hostChallenge = simulatedCard.pattern(BLOCK, 11);
+		byte[] cardChallenge = card.ok(0x25, 0x00, 0x00, hostChallenge, BLOCK);
+		assertEquals(BLOCK, cardChallenge.length);
+		
+		//Session Keys = SHA-256(SHA-256(PIN) + label + host challenge + card challenge), first 16 Bytes
+		byte[] pinKey = MessageDigest.getInstance("SHA-256").digest(simulatedCard.PIN);
+		encKey = deriveKey(pinKey, 0x01, hostChallenge, cardChallenge);
+		macKey = deriveKey(pinKey, 0x02, hostChallenge, cardChallenge);
+		counter = 0;
+	}
+	
+	@Test
+	public void writeAndReadRoundTrip() throws Exception {
+		byte[] data = simulatedCard.pattern(100, 4);
+		byte[] plain = new byte[2 + data.length];
+		plain[1] = (byte)20;
+		System.arraycopy(data, 0, plain, 2, data.length);
+		assertEquals(0x9000, card.send(simulatedCard.CLA, 0x41, 0x06, 0x01, wrap(0x41, plain), 0).getSW());
+		
+		//Plain read sees the Data
+		assertArrayEquals(data, card.read(0x01, 20, 100));
+		
+		//Encrypted read
+		byte[] request = {0, 20, 0, 100};
+		ResponseAPDU response = card.send(simulatedCard.CLA, 0x42, 0x06, 0x01, wrap(0x42, request), 256);
+		assertEquals(0x9000, response.getSW());
+		assertArrayEquals(data, unwrap(0x42, response.getData()));
+	}
+	
+	//Wrong MAC closes the session, later commands are refused
+	@Test
+	public void wrongMacClosesSession() throws Exception {
+		byte[] command = wrap(0x41, new byte[] {0, 0, 1, 2, 3});
+		command[command.length - 1] ^= 0x01;
+		assertEquals(0x6982, card.send(simulatedCard.CLA, 0x41, 0x06, 0x01, command, 0).getSW());
+		
+		assertEquals(0x6982, card.send(simulatedCard.CLA, 0x41, 0x06, 0x01, wrap(0x41, new byte[] {0, 0, 1}), 0).getSW());
+	}
+	
+	//A replayed command has an old counter
+	@Test
+	public void replayIsRefused() throws Exception {
+		byte[] command = wrap(0x41, new byte[] {0, 0, 1, 2, 3});
+		assertEquals(0x9000, card.send(simulatedCard.CLA, 0x41, 0x06, 0x01, command, 0).getSW());
+		assertEquals(0x6982, card.send(simulatedCard.CLA, 0x41, 0x06, 0x01, command, 0).getSW());
+	}
+	
+	//Wrong padding is malformed Data
+	@Test
+	public void wrongPaddingIsRefused() throws Exception {
+		//Block without 80 padding byte, encrypted and signed for the next counter
+		counter++;
+		byte[] header = header(0x00, 0x41, BLOCK);
+		Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(encKey, "AES"), new IvParameterSpec(iv(header)));
+		byte[] command = Arrays.copyOf(cipher.doFinal(new byte[BLOCK]), 2 * BLOCK);
+		System.arraycopy(mac(header, command, BLOCK), 0, command, BLOCK, BLOCK);
+		assertEquals(0x6988, card.send(simulatedCard.CLA, 0x41, 0x06, 0x01, command, 0).getSW());
+	}
+	
+	//The IV is not the plain header, a response decrypted with it is wrong
+	@Test
+	public void ivIsNotTheHeader() throws Exception {
+		byte[] data = simulatedCard.pattern(40, 8);
+		card.write(0x01, 0, data);
+		byte[] request = {0, 0, 0, 40};
+		ResponseAPDU response = card.send(simulatedCard.CLA, 0x42, 0x06, 0x01, wrap(0x42, request), 256);
+		assertEquals(0x9000, response.getSW());
+		assertArrayEquals(data, unwrap(0x42, response.getData()));
+		
+		//Second block is the same, the first one differs
+		Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(encKey, "AES"), new IvParameterSpec(header(0x01, 0x42, 48)));
+		byte[] plain = cipher.doFinal(response.getData(), 0, 48);
+		assertArrayEquals(Arrays.copyOfRange(data, BLOCK, 2 * BLOCK), Arrays.copyOfRange(plain, BLOCK, 2 * BLOCK));
+		assertFalse(Arrays.equals(Arrays.copyOf(data, BLOCK), Arrays.copyOf(plain, BLOCK)));
+	}
+	
+	//The session ends before the counter starts again
+	@Test
+	public void wrappedCounterIsRefused() throws Exception {
+		//Engine with its own session, the Keys come from the key material
+		byte[] keyData = simulatedCard.pattern(32, 5);
+		cryptoEngine engine = new cryptoEngine(keyData);
+		byte[] challenges = simulatedCard.pattern(2 * BLOCK, 9);
+		engine.openSession(challenges, (short)0);
+		encKey = deriveKey(keyData, 0x01, Arrays.copyOf(challenges, BLOCK), Arrays.copyOfRange(challenges, BLOCK, 2 * BLOCK));
+		macKey = deriveKey(keyData, 0x02, Arrays.copyOf(challenges, BLOCK), Arrays.copyOfRange(challenges, BLOCK, 2 * BLOCK));
+		counter = 0;
+		
+		byte[] plain = {1, 2, 3};
+		for(int i = 1; i < 0x10000; i++) {
+			byte[] command = wrap(0x41, plain);
+			assertEquals(plain.length, engine.unwrap((byte)0x41, command, (short)0, (short)command.length));
+		}
+		
+		//Next counter value would be 0 again
+		byte[] command = wrap(0x41, plain);
+		try {
+			engine.unwrap((byte)0x41, command, (short)0, (short)command.length);
+			fail();
+		} catch(ISOException e) {
+			assertEquals(0x6982, e.getReason());
+		}
+		assertFalse(engine.isSessionOpen());
+	}
+	
+	//Method for deriving one Session Key
+	private static byte[] deriveKey(byte[] pinKey, int label, byte[] hostChallenge, byte[] cardChallenge) throws Exception {
+		MessageDigest digest = MessageDigest.getInstance("SHA-256");
+		digest.update(pinKey);
+		digest.update((byte)label);
+		digest.update(hostChallenge);
+		digest.update(cardChallenge);
+		return Arrays.copyOf(digest.digest(), BLOCK);
+	}
+	
+	//Method for getting the IV of a message
+	//IV = header block encrypted with the Session ENC Key
+	private byte[] iv(byte[] header) throws Exception {
+		Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(encKey, "AES"));
+		return cipher.doFinal(header);
+	}
+	
+	//Method for getting the header block, the first MAC block
+	private byte[] header(int direction, int ins, int length) {
+		byte[] header = new byte[BLOCK];
+		header[0] = (byte)direction;
+		header[1] = (byte)ins;
+		header[2] = (byte)(counter >> 8);
+		header[3] = (byte)counter;
+		header[4] = (byte)(length >> 8);
+		header[5] = (byte)length;
+		return header;
+	}
+	
+	//Method for the AES CBC-MAC over header block and encrypted Data
+	private byte[] mac(byte[] header, byte[] data, int length) throws Exception {
+		byte[] input = new byte[BLOCK + length];
+		System.arraycopy(header, 0, input, 0, BLOCK);
+		System.arraycopy(data, 0, input, BLOCK, length);
+		Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(macKey, "AES"), new IvParameterSpec(new byte[BLOCK]));
+		byte[] out = cipher.doFinal(input);
+		return Arrays.copyOfRange(out, out.length - BLOCK, out.length);
+	}
+	
+	//Method for padding, encrypting and signing a command
+	private byte[] wrap(int ins, byte[] plain) throws Exception {
+		counter++;
+		int length = (plain.length / BLOCK + 1) * BLOCK;
+		byte[] padded = Arrays.copyOf(plain, length);
+		padded[plain.length] = (byte)0x80;
+		
+		byte[] header = header(0x00, ins, length);
+		Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(encKey, "AES"), new IvParameterSpec(iv(header)));
+		byte[] command = Arrays.copyOf(cipher.doFinal(padded), length + BLOCK);
+		System.arraycopy(mac(header, command, length), 0, command, length, BLOCK);
+		return command;
+	}
+	
+	//Method for checking and decrypting a response
+	private byte[] unwrap(int ins, byte[] response) throws Exception {
+		int length = response.length - BLOCK;
+		byte[] header = header(0x01, ins, length);
+		assertArrayEquals(mac(header, response, length), Arrays.copyOfRange(response, length, response.length));
+		
+		Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
+		cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(encKey, "AES"), new IvParameterSpec(iv(header)));
+		byte[] plain = cipher.doFinal(response, 0, length);
+		int end = plain.length - 1;
+		while(plain[end] == 0x00) {
+			end--;
+		}
+		assertEquals((byte)0x80, plain[end]);
+		return Arrays.copyOf(plain, end);
+	}
+}
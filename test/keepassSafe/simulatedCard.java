@@ -0,0 +1,181 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassSafe;
+
+import static org.junit.Assert.assertEquals;
+
+import javacard.framework.AID;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+
+//Simulated Card Class
+//passwordSafe installed in jCardSim with helpers for the tests
+public class simulatedCard {
+	
+	static final byte[] AID_BYTES = {(byte)0x11, (byte)0x22, (byte)0x33, (byte)0x44, (byte)0x55, (byte)0x66, (byte)0x77, (byte)0x88, (byte)0x00};
+	static final byte[] PIN = {'1', '2', '3', '4'};
+	static final int CLA = 0x80;
+	
+	final CardSimulator simulator;
+	final AID aid = new AID(AID_BYTES, (short)0, (byte)AID_BYTES.length);
+	
+	//Create Simulated Card with one Array per File
+	simulatedCard() {
+		this(0);
+	}
+	
+	//Create Simulated Card
+	// arenaSize = Size of the Arena, 0 for one Array per File
+	simulatedCard(int arenaSize) {
+		this(new CardSimulator(), arenaSize);
+	}
+	
+	//Create Simulated Card on a given simulator
+	simulatedCard(CardSimulator simulator, int arenaSize) {
+		this(simulator, arenaSize, 0);
+	}
+	
+	//Create Simulated Card
+	// arenaSize = Size of the Arena, 0 for one Array per File
+	// slots = Number of File Slots, 0 for the default
+	simulatedCard(CardSimulator simulator, int arenaSize, int slots) {
+		this.simulator = simulator;
+		
+		//Install parameters = [Length][AID][Length][Control][Length][Arena size][File Slots]
+		int appData = slots > 0 ? 3 : 2;
+		byte[] params = new byte[AID_BYTES.length + 3 + appData];
+		params[0] = (byte)AID_BYTES.length;
+		System.arraycopy(AID_BYTES, 0, params, 1, AID_BYTES.length);
+		int offset = AID_BYTES.length + 1;
+		params[offset] = 0;
+		params[offset + 1] = (byte)appData;
+		params[offset + 2] = (byte)(arenaSize >> 8);
+		params[offset + 3] = (byte)arenaSize;
+		if(slots > 0) {
+			params[offset + 4] = (byte)slots;
+		}
+		
+		simulator.installApplet(aid, passwordSafe.class, params, (short)0, (byte)params.length);
+		select();
+	}
+	
+	//Method for selecting the Applet
+	ResponseAPDU select() {
+		ResponseAPDU response = simulator.transmitCommand(new CommandAPDU(0x00, 0xA4, 0x04, 0x00, AID_BYTES, 256));
+		assertEquals(0x9000, response.getSW());
+		return response;
+	}
+	
+	//Method for sending a command
+	ResponseAPDU send(int cla, int ins, int p1, int p2, byte[] data, int ne) {
+		CommandAPDU command;
+		if(data == null) {
+			command = ne > 0 ? new CommandAPDU(cla, ins, p1, p2, ne) : new CommandAPDU(cla, ins, p1, p2);
+		} else {
+			command = ne > 0 ? new CommandAPDU(cla, ins, p1, p2, data, ne) : new CommandAPDU(cla, ins, p1, p2, data);
+		}
+		return simulator.transmitCommand(command);
+	}
+	
+	//Method for sending a command which must succeed
+	byte[] ok(int ins, int p1, int p2, byte[] data, int ne) {
+		ResponseAPDU response = send(CLA, ins, p1, p2, data, ne);
+		assertEquals(String.format("SW of INS %02X", ins), 0x9000, response.getSW());
+		return response.getData();
+	}
+	
+	//Method for personalising the card and verifying the PIN
+	//Returns the PUK
+	byte[] personalise() {
+		byte[] puk = ok(0x20, 0x00, 0x01, PIN, 256);
+		ok(0x21, 0x01, 0x00, PIN, 1);
+		return puk;
+	}
+	
+	//Method for creating both Data Files and the File Name
+	void createFiles(int size1, int size2, String name) {
+		byte[] nameData = name.getBytes();
+		byte[] data = new byte[4 + nameData.length];
+		data[0] = (byte)(size1 >> 8);
+		data[1] = (byte)size1;
+		data[2] = (byte)(size2 >> 8);
+		data[3] = (byte)size2;
+		System.arraycopy(nameData, 0, data, 4, nameData.length);
+		ok(0x40, 0x01, 0x01, data, 0);
+	}
+	
+	//Method for writing Data to a File
+	void write(int p2, int offset, byte[] data) {
+		byte[] command = new byte[data.length + 2];
+		command[0] = (byte)(offset >> 8);
+		command[1] = (byte)offset;
+		System.arraycopy(data, 0, command, 2, data.length);
+		ok(0x41, 0x03, p2, command, 0);
+	}
+	
+	//Method for reading Data from a File
+	byte[] read(int p2, int offset, int length) {
+		byte[] command = {(byte)(offset >> 8), (byte)offset, (byte)(length >> 8), (byte)length};
+		return ok(0x42, 0x03, p2, command, length);
+	}
+	
+	//Method for encrypting Data for the PIN commands
+	//Key = SHA-256(PIN on INIT), AES-256 ECB without padding
+	static byte[] encrypt(byte[] plain) {
+		try {
+			byte[] key = java.security.MessageDigest.getInstance("SHA-256").digest(PIN);
+			javax.crypto.Cipher cipher = javax.crypto.Cipher.getInstance("AES/ECB/NoPadding");
+			cipher.init(javax.crypto.Cipher.ENCRYPT_MODE, new javax.crypto.spec.SecretKeySpec(key, "AES"));
+			return cipher.doFinal(plain);
+		} catch(java.security.GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	//Method for getting a frame [Length][Data]... padded with 00 to whole blocks
+	static byte[] frame(byte[]... fields) {
+		int length = 0;
+		for(byte[] field : fields) {
+			length += field.length + 1;
+		}
+		byte[] frame = new byte[(length + 15) / 16 * 16];
+		int offset = 0;
+		for(byte[] field : fields) {
+			frame[offset++] = (byte)field.length;
+			System.arraycopy(field, 0, frame, offset, field.length);
+			offset += field.length;
+		}
+		return frame;
+	}
+	
+	//Method for getting test Data
+	static byte[] pattern(int length, int seed) {
+		byte[] data = new byte[length];
+		for(int i = 0; i < length; i++) {
+			data[i] = (byte)(i * 7 + seed);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassSafe;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+
+//Tests for the Usage Statistics
+public class usageStatsTest {
+	
+	//Method for getting Usage Statistics on a fresh runtime
+	private static usageStats newStats() {
+		//Runtime for JCSystem
+		new CardSimulator();
+		return new usageStats(new byte[] {(byte)0x21, (byte)0x42});
+	}
+	
+	//Method for reading the totals
+	private static byte[] readOut(usageStats stats, int maxLength) {
+		byte[] out = new byte[256];
+		short length = stats.copyTotals(out, (short)0, (short)maxLength);
+		return Arrays.copyOf(out, length);
+	}
+	
+	//Method for getting a 32 bit total
+	private static long getInt(byte[] data, int offset) {
+		return ((long)passwordSafeTest.getShort(data, offset) << 16) | passwordSafeTest.getShort(data, offset + 2);
+	}
+	
+	//Method for getting the command total of an INS, -1 without record
+	private static long getCommands(byte[] data, int ins) {
+		for(int offset = usageStats.HEADER_LENGTH; offset < data.length; offset += usageStats.RECORD_LENGTH) {
+			if((data[offset] & 0xFF) == ins) {
+				return getInt(data, offset + 1);
+			}
+		}
+		return -1;
+	}
+	
+	//Low word overflow is carried into the high word
+	@Test
+	public void totalCarriesIntoHighWord() {
+		usageStats stats = newStats();
+		
+		//Every add after the first saves the full RAM counter first
+		for(int i = 0; i < 5; i++) {
+			stats.add(usageStats.BYTES_WRITTEN, (short)0x7FFF);
+		}
+		
+		byte[] data = readOut(stats, 256);
+		assertEquals(5L * 0x7FFF, getInt(data, 4));
+		assertEquals(0L, getInt(data, 0));
+	}
+	
+	//61xx and 90xx do not count as failures
+	@Test
+	public void moreDataIsNoFailure() {
+		usageStats stats = newStats();
+		stats.countCommand((byte)0x42);
+		stats.countFailure((byte)0x42, (short)0x6110);
+		stats.countFailure((byte)0x42, (short)0x9000);
+		
+		byte[] data = readOut(stats, 256);
+		assertEquals(0, passwordSafeTest.getShort(data, 16));
+		assertEquals(1, data[19]);
+		byte[] record = {0x42, 0, 0, 0, 1, 0, 0, 0, 0};
+		assertArrayEquals(record, Arrays.copyOfRange(data, usageStats.HEADER_LENGTH, data.length));
+	}
+	
+	//Read-out = general counters, last failure, record count, one record per used INS
+	@Test
+	public void readOutFormat() {
+		usageStats stats = newStats();
+		stats.add(usageStats.BYTES_READ, (short)300);
+		stats.add(usageStats.SELECTS, (short)2);
+		stats.add(usageStats.SELECT_GC, (short)1);
+		stats.countCommand((byte)0x21);
+		stats.countCommand((byte)0x21);
+		stats.countFailure((byte)0x21, (short)0x63C2);
+		stats.countCommand((byte)0x99);
+		stats.countFailure((byte)0x99, (short)0x6D00);
+		
+		byte[] data = readOut(stats, 256);
+		assertEquals(usageStats.HEADER_LENGTH + 2 * usageStats.RECORD_LENGTH, data.length);
+		assertEquals(300L, getInt(data, 0));
+		assertEquals(0L, getInt(data, 4));
+		assertEquals(2L, getInt(data, 8));
+		assertEquals(1L, getInt(data, 12));
+		
+		//Last failure wins, record count
+		assertEquals(0x6D00, passwordSafeTest.getShort(data, 16));
+		assertEquals(0x99, data[18] & 0xFF);
+		assertEquals(2, data[19]);
+		
+		//INS 42 has no commands, other INS are counted as 00
+		byte[] records = {
+			0x21, 0, 0, 0, 2, 0, 0, 0, 1,
+			0x00, 0, 0, 0, 1, 0, 0, 0, 1};
+		assertArrayEquals(records, Arrays.copyOfRange(data, usageStats.HEADER_LENGTH, data.length));
+		
+		//Records which do not fit are left out
+		data = readOut(stats, usageStats.HEADER_LENGTH + usageStats.RECORD_LENGTH);
+		assertEquals(usageStats.HEADER_LENGTH + usageStats.RECORD_LENGTH, data.length);
+		assertEquals(1, data[19]);
+	}
+	
+	//Deselect only writes the totals when a counter passed the threshold
+	@Test
+	public void deselectSavesOnlyWhenDue() {
+		CardSimulator simulator = new CardSimulator();
+		simulatedCard card = new simulatedCard(simulator, 0);
+		card.personalise();
+		card.createFiles(400, 10, "safe.kdbx");
+		
+		//Few commands are not saved on deselect and lost on reset
+		card.select();
+		simulator.reset();
+		card.select();
+		card.ok(0x21, 0x01, 0x00, simulatedCard.PIN, 1);
+		byte[] data = card.ok(0x53, 0x00, 0x00, null, 256);
+		assertEquals(1L, getCommands(data, 0x21));
+		assertEquals(-1L, getCommands(data, 0x40));
+		
+		//Written bytes pass the threshold and are saved on deselect
+		card.write(0x01, 0, simulatedCard.pattern(usageStats.SAVE_THRESHOLD, 1));
+		card.select();
+		simulator.reset();
+		card.select();
+		card.ok(0x21, 0x01, 0x00, simulatedCard.PIN, 1);
+		data = card.ok(0x53, 0x00, 0x00, null, 256);
+		assertEquals((long)usageStats.SAVE_THRESHOLD, getInt(data, 4));
+	}
+}
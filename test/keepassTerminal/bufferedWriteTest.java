@@ -0,0 +1,102 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+//Tests for buffered UPDATE_BINARY through the Page Buffer of the card
+public class bufferedWriteTest {
+	
+	private static final int P1_WRITE_BUFFERED = 0x04;
+	private static final int INS_FLUSH = 0x46;
+	
+	//Method for writing Data through the Page Buffer
+	private static void writeBuffered(testCard card, int file, int offset, byte[] data) throws Exception {
+		byte[] command = new byte[2 + data.length];
+		safeClient.setShort(command, 0, offset);
+		System.arraycopy(data, 0, command, 2, data.length);
+		card.client.transmit(safeClient.INS_UPDATE_BINARY, P1_WRITE_BUFFERED, file, command, 0);
+	}
+	
+	//Small writes are collected and are in the File after the flush
+	@Test
+	public void smallWritesAreFlushed() throws Exception {
+		testCard card = new testCard(300, 64);
+		byte[] data = testCard.pattern(200, 8);
+		for(int offset = 0; offset < data.length; offset += 10) {
+			writeBuffered(card, safeClient.FILE_DATA1, 5 + offset, Arrays.copyOfRange(data, offset, offset + 10));
+		}
+		card.client.transmit(INS_FLUSH, 0x03, 0x00, null, 0);
+		
+		byte[] expected = testCard.pattern(300, 1);
+		System.arraycopy(data, 0, expected, 5, data.length);
+		assertArrayEquals(expected, card.client.readFile(safeClient.FILE_DATA1).join());
+		assertArrayEquals(testCard.pattern(64, 2), card.client.readFile(safeClient.FILE_DATA2).join());
+	}
+	
+	//Reads see buffered Data without a flush
+	@Test
+	public void readSeesBufferedData() throws Exception {
+		testCard card = new testCard(300, 64);
+		byte[] data = testCard.pattern(7, 9);
+		writeBuffered(card, safeClient.FILE_DATA2, 30, data);
+		
+		assertArrayEquals(data, card.client.readFile(safeClient.FILE_DATA2, 30, 7).join());
+	}
+	
+	//A direct write after buffered writes is not overwritten by the Page Buffer
+	@Test
+	public void directWriteKeepsOrder() throws Exception {
+		testCard card = new testCard(300, 64);
+		byte[] buffered = new byte[64];
+		Arrays.fill(buffered, (byte)0x41);
+		byte[] direct = new byte[10];
+		Arrays.fill(direct, (byte)0x42);
+		
+		writeBuffered(card, safeClient.FILE_DATA1, 0, buffered);
+		card.client.writeFile(safeClient.FILE_DATA1, 10, direct).join();
+		card.client.transmit(INS_FLUSH, 0x03, 0x00, null, 0);
+		
+		byte[] expected = buffered.clone();
+		System.arraycopy(direct, 0, expected, 10, direct.length);
+		assertArrayEquals(expected, card.client.readFile(safeClient.FILE_DATA1, 0, 64).join());
+	}
+	
+	//Flush needs the PIN
+	@Test
+	public void flushNeedsPin() throws Exception {
+		testCard card = new testCard(300, 64);
+		card.client.select().join();
+		try {
+			card.client.transmit(INS_FLUSH, 0x03, 0x00, null, 0);
+			fail("Flush without PIN");
+		} catch(statusException e) {
+			assertEquals(0x6982, e.getSW());
+		}
+	}
+}
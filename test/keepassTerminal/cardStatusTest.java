@@ -0,0 +1,142 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+//Tests for the Card Status sent on SELECT
+public class cardStatusTest {
+	
+	//Method for writing a TLV, Length up to 255
+	private static void tlv(ByteArrayOutputStream out, int tag, byte[] value) {
+		out.write(tag);
+		if(value.length > 0x7F) {
+			out.write(0x81);
+		}
+		out.write(value.length);
+		out.writeBytes(value);
+	}
+	
+	//Method for getting a SELECT response with the status items
+	private static byte[] response(byte[] items) {
+		ByteArrayOutputStream proprietary = new ByteArrayOutputStream();
+		tlv(proprietary, cardStatus.TAG_PROPRIETARY, items);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(cardStatus.STATE_SECURE_DATA);
+		out.write(0x00);
+		tlv(out, cardStatus.TAG_FCI, proprietary.toByteArray());
+		return out.toByteArray();
+	}
+	
+	//Without INS 55 the card hides File sizes and File Name
+	@Test
+	public void hiddenStatus() throws Exception {
+		testCard card = new testCard(700, 64);
+		cardStatus status = card.client.selectStatus().join();
+		
+		assertEquals(cardStatus.STATE_SECURE_DATA, status.getState());
+		assertTrue(status.getPinTries() > 0);
+		assertTrue(status.getPukTries() > 0);
+		assertFalse(status.hasMasterPW());
+		assertNull(status.getFileSizes());
+		assertNull(status.getFileName());
+	}
+	
+	//With INS 55 the card sends File sizes, File Name and the Master PW state
+	@Test
+	public void publicStatus() throws Exception {
+		testCard card = new testCard(700, 64);
+		card.client.setStatusPublic(true).join();
+		card.client.setMasterPW("master".getBytes(StandardCharsets.UTF_8)).join();
+		cardStatus status = card.client.selectStatus().join();
+		
+		assertTrue(status.hasMasterPW());
+		assertArrayEquals(new int[] {700, 64}, status.getFileSizes());
+		assertEquals(testCard.FILE_NAME, status.getFileName());
+	}
+	
+	//A wrong PIN is seen in the tries
+	@Test
+	public void wrongPinLowersTries() throws Exception {
+		testCard card = new testCard(700, 64);
+		int tries = card.client.selectStatus().join().getPinTries();
+		card.client.verify(new byte[] {'0', '0', '0', '0'}).handle((result, e) -> null).join();
+		
+		assertEquals(tries - 1, card.client.selectStatus().join().getPinTries());
+	}
+	
+	//Older Applets only send State and GC Byte
+	@Test
+	public void oldResponse() {
+		cardStatus status = new cardStatus(new byte[] {cardStatus.STATE_SECURE_NO_DATA, 0x01});
+		assertEquals(cardStatus.STATE_SECURE_NO_DATA, status.getState());
+		assertTrue(status.isCollected());
+		assertEquals(-1, status.getPinTries());
+		assertEquals(-1, status.getPukTries());
+		assertNull(status.getFileSizes());
+	}
+	
+	//Lengths above 0x7F come in the long form, unknown items are skipped
+	@Test
+	public void longFormAndUnknownTag() {
+		byte[] name = new byte[150];
+		Arrays.fill(name, (byte)'n');
+		ByteArrayOutputStream items = new ByteArrayOutputStream();
+		tlv(items, cardStatus.TAG_STATE, new byte[] {cardStatus.STATE_PIN_LOCKED});
+		tlv(items, 0x90, new byte[] {(byte)0xAA, (byte)0xBB});
+		tlv(items, cardStatus.TAG_TRIES, new byte[] {0x00, 0x05});
+		tlv(items, cardStatus.TAG_FILE_NAME, name);
+		tlv(items, cardStatus.TAG_COLLECTED, new byte[] {0x01});
+		
+		cardStatus status = new cardStatus(response(items.toByteArray()));
+		assertEquals(cardStatus.STATE_PIN_LOCKED, status.getState());
+		assertEquals(0, status.getPinTries());
+		assertEquals(5, status.getPukTries());
+		assertEquals(new String(name, StandardCharsets.US_ASCII), status.getFileName());
+		assertTrue(status.isCollected());
+	}
+	
+	//A TLV longer than the response is refused
+	@Test(expected = IllegalArgumentException.class)
+	public void truncatedItem() {
+		ByteArrayOutputStream items = new ByteArrayOutputStream();
+		tlv(items, cardStatus.TAG_FILE_SIZES, new byte[] {0x02, 0x00, 0x00, 0x40});
+		byte[] data = response(items.toByteArray());
+		new cardStatus(Arrays.copyOf(data, data.length - 1));
+	}
+	
+	//An empty response is refused
+	@Test(expected = IllegalArgumentException.class)
+	public void emptyResponse() {
+		new cardStatus(new byte[0]);
+	}
+}
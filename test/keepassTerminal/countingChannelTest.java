@@ -0,0 +1,164 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+import org.junit.Test;
+
+//Tests for the counts, histograms and export of the Counting Channel
+public class countingChannelTest {
+	
+	private static final String LABEL = "reader=\"reader\"";
+	
+	//Method for getting the value of one exported sample
+	private static double value(String export, String sample) {
+		for(String line : export.split("\n")) {
+			if(line.startsWith(sample + " ")) {
+				return Double.parseDouble(line.substring(sample.length() + 1));
+			}
+		}
+		fail("No sample " + sample);
+		return 0;
+	}
+	
+	//Commands and Data are counted per INS
+	@Test
+	public void countsPerIns() throws Exception {
+		testCard card = new testCard(700, 64);
+		countingChannel channel = new countingChannel(card.channel, "reader");
+		safeClient client = new safeClient(channel, Runnable::run);
+		client.setChunkSizes(250, 253);
+		
+		client.readFile(safeClient.FILE_DATA1, 0, 700).join();
+		client.writeFile(safeClient.FILE_DATA2, 0, new byte[64]).join();
+		assertEquals(4, channel.getCommands());
+		assertEquals(3 * 4 + 2 + 64, channel.getBytesSent());
+		assertEquals(700, channel.getBytesReceived());
+		assertTrue(channel.getNanos() > 0);
+		
+		String export = channel.export();
+		assertEquals(3, value(export, "passwordsafe_apdu_latency_seconds_count{" + LABEL + ",ins=\"42\"}"), 0);
+		assertEquals(1, value(export, "passwordsafe_apdu_latency_seconds_count{" + LABEL + ",ins=\"41\"}"), 0);
+		assertEquals(12, value(export, "passwordsafe_apdu_bytes_total{" + LABEL + ",ins=\"42\",direction=\"sent\"}"), 0);
+		assertEquals(700, value(export, "passwordsafe_apdu_bytes_total{" + LABEL + ",ins=\"42\",direction=\"received\"}"), 0);
+		assertEquals(66, value(export, "passwordsafe_apdu_bytes_total{" + LABEL + ",ins=\"41\",direction=\"sent\"}"), 0);
+		assertTrue(channel.getThroughput(safeClient.INS_READ_BINARY) > 0);
+		assertTrue(value(export, "passwordsafe_transfer_bytes_per_second{" + LABEL + ",ins=\"41\"}") > 0);
+		assertEquals(0.0, channel.getThroughput(safeClient.INS_FILE_SIZE), 0);
+	}
+	
+	//Buckets count up to their bound and end with all exchanges
+	@Test
+	public void bucketsAreCumulative() throws Exception {
+		testCard card = new testCard(700, 64);
+		testChannel slow = new testChannel(card.channel) {
+			@Override
+			public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+				try {
+					Thread.sleep(30);
+				} catch(InterruptedException e) {
+					throw new CardException(e);
+				}
+				return super.transmit(command);
+			}
+		};
+		countingChannel channel = new countingChannel(slow, "reader");
+		safeClient client = new safeClient(channel, Runnable::run);
+		client.getFileSizes().join();
+		client.getFileSizes().join();
+		
+		String export = channel.export();
+		String labels = LABEL + ",ins=\"44\"";
+		assertEquals(0, value(export, "passwordsafe_apdu_latency_seconds_bucket{" + labels + ",le=\"0.025\"}"), 0);
+		double last = 0;
+		for(double bound : countingChannel.BUCKETS) {
+			double count = value(export, "passwordsafe_apdu_latency_seconds_bucket{" + labels + ",le=\"" + bound + "\"}");
+			assertTrue(count >= last);
+			last = count;
+		}
+		assertEquals(2, value(export, "passwordsafe_apdu_latency_seconds_bucket{" + labels + ",le=\"+Inf\"}"), 0);
+		assertEquals(2, value(export, "passwordsafe_apdu_latency_seconds_count{" + labels + "}"), 0);
+		assertTrue(value(export, "passwordsafe_apdu_latency_seconds_sum{" + labels + "}") >= 0.06);
+	}
+	
+	//Status words, transport errors and repeats are counted
+	@Test
+	public void errorsAreCounted() throws Exception {
+		testCard card = new testCard(700, 64);
+		countingChannel channel = new countingChannel(card.channel, "reader");
+		safeClient client = new safeClient(channel, Runnable::run);
+		client.setRetryListener(channel::countRetry);
+		
+		card.channel.fail(1);
+		client.getFileSizes().join();
+		client.getMasterPW().handle((result, e) -> null).join();
+		
+		String export = channel.export();
+		assertEquals(1, value(export, "passwordsafe_apdu_transport_errors_total{" + LABEL + ",ins=\"44\"}"), 0);
+		assertEquals(1, value(export, "passwordsafe_apdu_retries_total{" + LABEL + "}"), 0);
+		assertEquals(1, value(export, "passwordsafe_apdu_status_total{" + LABEL + ",ins=\"31\",sw=\"6986\"}"), 0);
+		assertEquals(2, value(export, "passwordsafe_apdu_latency_seconds_count{" + LABEL + ",ins=\"44\"}"), 0);
+		assertFalse(export.contains("sw=\"9000\""));
+	}
+	
+	//Commands as bytes are parsed for INS and Data, also with extended length
+	@Test
+	public void byteBufferTransmit() throws Exception {
+		testCard card = new testCard(700, 64);
+		countingChannel channel = new countingChannel(card.channel, "reader");
+		
+		byte[] data = new byte[4];
+		safeClient.setShort(data, 2, 300);
+		ByteBuffer command = ByteBuffer.wrap(new CommandAPDU(0x80, safeClient.INS_READ_BINARY, 0x03, safeClient.FILE_DATA1, data, 300).getBytes());
+		ByteBuffer response = ByteBuffer.allocate(512);
+		assertEquals(302, channel.transmit(command, response));
+		
+		String export = channel.export();
+		assertEquals(4, value(export, "passwordsafe_apdu_bytes_total{" + LABEL + ",ins=\"42\",direction=\"sent\"}"), 0);
+		assertEquals(300, value(export, "passwordsafe_apdu_bytes_total{" + LABEL + ",ins=\"42\",direction=\"received\"}"), 0);
+		assertEquals(1, channel.getCommands());
+	}
+	
+	//Reader names are escaped in the labels
+	@Test
+	public void readerLabelIsEscaped() throws Exception {
+		testCard card = new testCard(700, 64);
+		countingChannel channel = new countingChannel(card.channel, "Reader \"A\\1\"\n");
+		new safeClient(channel, Runnable::run).getFileSizes().join();
+		
+		String export = channel.export();
+		assertEquals(1, value(export, "passwordsafe_apdu_latency_seconds_count{reader=\"Reader \\\"A\\\\1\\\"\\n\",ins=\"44\"}"), 0);
+		for(String line : export.split("\n")) {
+			assertTrue(line.startsWith("# ") || line.startsWith("passwordsafe_"));
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletionException;
+
+import org.junit.Test;
+
+//Tests for the File Cache and the Cached Client
+public class fileCacheTest {
+	
+	//Method for getting a File state
+	private static fileState state(int fileID, int generation, int size) {
+		return new fileState(fileID, generation, size, new byte[fileState.DIGEST_LENGTH]);
+	}
+	
+	//Least recently used entries are removed when the bound is reached
+	@Test
+	public void boundRemovesLeastRecentlyUsed() {
+		fileCache cache = new fileCache(250);
+		fileState first = state(fileState.keepassData1, 1, 100);
+		fileState second = state(fileState.keepassData2, 1, 100);
+		cache.put("card", first, new byte[100]);
+		cache.put("card", second, new byte[100]);
+		cache.get("card", first);
+		
+		cache.put("other", first, new byte[100]);
+		assertEquals(200, cache.getBytes());
+		assertNull(cache.get("card", second));
+		assertArrayEquals(new byte[100], cache.get("card", first));
+		assertArrayEquals(new byte[100], cache.get("other", first));
+		
+		cache.put("card", state(0x0220, 1, 300), new byte[300]);
+		assertEquals(200, cache.getBytes());
+	}
+	
+	//Data of a changed File is removed
+	@Test
+	public void changedFileIsRemoved() {
+		fileCache cache = new fileCache();
+		cache.put("card", state(fileState.keepassData1, 1, 10), new byte[10]);
+		
+		assertNull(cache.get("card", state(fileState.keepassData1, 2, 10)));
+		assertEquals(0, cache.getBytes());
+		assertNull(cache.get("card", state(fileState.keepassData1, 1, 10)));
+		assertEquals(2, cache.getMisses());
+	}
+	
+	//A write patches current Data and removes Data which was not current
+	@Test
+	public void updateOnlyCurrentData() {
+		fileCache cache = new fileCache();
+		fileState first = state(fileState.keepassData1, 1, 10);
+		fileState second = state(fileState.keepassData1, 2, 10);
+		cache.put("card", first, new byte[10]);
+		
+		cache.update("card", first, second, 8, new byte[] {1, 2});
+		assertArrayEquals(new byte[] {0, 0, 0, 0, 0, 0, 0, 0, 1, 2}, cache.get("card", second));
+		
+		cache.update("card", first, state(fileState.keepassData1, 3, 10), 0, new byte[] {3});
+		assertEquals(0, cache.getBytes());
+		
+		cache.put("card", second, new byte[10]);
+		cache.update("card", second, state(fileState.keepassData1, 3, 10), 9, new byte[] {1, 2});
+		assertEquals(0, cache.getBytes());
+	}
+	
+	//Invalidating a card removes only its entries
+	@Test
+	public void invalidateCard() {
+		fileCache cache = new fileCache();
+		fileState state = state(fileState.keepassData1, 1, 10);
+		cache.put("card", state, new byte[10]);
+		cache.put("card", state(fileState.keepassData2, 1, 10), new byte[10]);
+		cache.put("card2", state, new byte[10]);
+		
+		cache.invalidate("card");
+		assertEquals(10, cache.getBytes());
+		assertArrayEquals(new byte[10], cache.get("card2", state));
+	}
+	
+	//A second read of an unchanged File needs no READ_BINARY
+	@Test
+	public void secondReadFromCache() throws Exception {
+		testCard card = new testCard(700, 64);
+		fileCache cache = new fileCache();
+		cachedClient client = new cachedClient(card.client, cache, "card");
+		
+		assertArrayEquals(testCard.pattern(700, 1), client.readFile(safeClient.FILE_DATA1).join());
+		int reads = card.channel.count(safeClient.INS_READ_BINARY);
+		assertArrayEquals(testCard.pattern(700, 1), client.readFile(safeClient.FILE_DATA1).join());
+		assertEquals(reads, card.channel.count(safeClient.INS_READ_BINARY));
+		assertEquals(1, cache.getHits());
+		
+		assertEquals(testCard.FILE_NAME, client.getFileName().join());
+		assertEquals(testCard.FILE_NAME, client.getFileName().join());
+		assertEquals(1, card.channel.count(safeClient.INS_GET_FILE_NAME));
+	}
+	
+	//A write through the Cached Client patches the cache
+	@Test
+	public void writePatchesCache() throws Exception {
+		testCard card = new testCard(700, 64);
+		cachedClient client = new cachedClient(card.client, new fileCache(), "card");
+		client.readFile(safeClient.FILE_DATA1).join();
+		
+		byte[] data = testCard.pattern(50, 6);
+		client.writeFile(safeClient.FILE_DATA1, 600, data).join();
+		card.channel.clear();
+		
+		byte[] expected = testCard.pattern(700, 1);
+		System.arraycopy(data, 0, expected, 600, data.length);
+		assertArrayEquals(expected, client.readFile(safeClient.FILE_DATA1).join());
+		assertEquals(0, card.channel.count(safeClient.INS_READ_BINARY));
+	}
+	
+	//A write of another client is seen and the File is read again
+	@Test
+	public void writeOfOtherClient() throws Exception {
+		testCard card = new testCard(700, 64);
+		cachedClient client = new cachedClient(card.client, new fileCache(), "card");
+		client.readFile(safeClient.FILE_DATA2).join();
+		
+		byte[] data = testCard.pattern(64, 7);
+		card.newClient().writeFile(safeClient.FILE_DATA2, 0, data).join();
+		card.channel.clear();
+		
+		assertArrayEquals(data, client.readFile(safeClient.FILE_DATA2).join());
+		assertEquals(1, card.channel.count(safeClient.INS_READ_BINARY));
+	}
+	
+	//A failed write removes the cached File
+	@Test
+	public void failedWriteInvalidates() throws Exception {
+		testCard card = new testCard(700, 64);
+		fileCache cache = new fileCache();
+		cachedClient client = new cachedClient(card.client, cache, "card");
+		client.readFile(safeClient.FILE_DATA1).join();
+		
+		card.channel.limit(10, Integer.MAX_VALUE);
+		try {
+			client.writeFile(safeClient.FILE_DATA1, 0, new byte[100]).join();
+			fail("Write with too much Data");
+		} catch(CompletionException e) {
+			assertEquals(0x6700, ((statusException) e.getCause()).getSW());
+		}
+		assertEquals(0, cache.getBytes());
+	}
+	
+	//Creating the Files removes all cached Files of the card
+	@Test
+	public void createFilesInvalidates() throws Exception {
+		testCard card = new testCard(700, 64);
+		fileCache cache = new fileCache();
+		cachedClient client = new cachedClient(card.client, cache, "card");
+		client.readFile(safeClient.FILE_DATA1).join();
+		client.getFileName().join();
+		
+		//The card may refuse the Files, the cache is cleared before
+		client.createFiles(700, 64, testCard.FILE_NAME).handle((result, e) -> null).join();
+		assertEquals(0, cache.getBytes());
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+//Tests for the Generation and Digest of the Files
+public class fileStateTest {
+	
+	//Every File has a state with its size
+	@Test
+	public void statesOfAllFiles() throws Exception {
+		testCard card = new testCard(700, 64);
+		Map<Integer, fileState> states = card.client.getFileStates().join();
+		
+		assertEquals(700, states.get(fileState.keepassData1).getSize());
+		assertEquals(64, states.get(fileState.keepassData2).getSize());
+		assertEquals(testCard.FILE_NAME.length(), states.get(fileState.keepassFileName).getSize());
+		assertEquals(fileState.DIGEST_LENGTH, states.get(fileState.keepassData1).getDigest().length);
+	}
+	
+	//States stay the same without writes
+	@Test
+	public void readsKeepState() throws Exception {
+		testCard card = new testCard(700, 64);
+		Map<Integer, fileState> before = card.client.getFileStates().join();
+		card.client.readBothFiles().join();
+		assertEquals(before, card.client.getFileStates().join());
+	}
+	
+	//A write changes Generation and Digest of its File only
+	@Test
+	public void writeChangesState() throws Exception {
+		testCard card = new testCard(700, 64);
+		Map<Integer, fileState> before = card.client.getFileStates().join();
+		card.client.writeFile(safeClient.FILE_DATA1, 500, new byte[] {0x12}).join();
+		Map<Integer, fileState> after = card.client.getFileStates().join();
+		
+		fileState old = before.get(fileState.keepassData1);
+		fileState changed = after.get(fileState.keepassData1);
+		assertNotEquals(old.getGeneration(), changed.getGeneration());
+		assertFalse(Arrays.equals(old.getDigest(), changed.getDigest()));
+		assertNotEquals(old, changed);
+		assertEquals(before.get(fileState.keepassData2), after.get(fileState.keepassData2));
+		assertEquals(before.get(fileState.keepassFileName), after.get(fileState.keepassFileName));
+	}
+	
+	//The Digest follows the content, the Generation counts the writes
+	@Test
+	public void sameContentSameDigest() throws Exception {
+		testCard card = new testCard(700, 64);
+		fileState before = card.client.getFileStates().join().get(fileState.keepassData2);
+		card.client.writeFile(safeClient.FILE_DATA2, 0, new byte[64]).join();
+		card.client.writeFile(safeClient.FILE_DATA2, 0, testCard.pattern(64, 2)).join();
+		fileState after = card.client.getFileStates().join().get(fileState.keepassData2);
+		
+		assertArrayEquals(before.getDigest(), after.getDigest());
+		assertNotEquals(before.getGeneration(), after.getGeneration());
+	}
+	
+	//Response of INS 48 is parsed by File ID, a partial state is left out
+	@Test
+	public void parseResponse() {
+		byte[] data = new byte[2 + 2 * fileState.STATE_LENGTH + 3];
+		safeClient.setShort(data, 0, 0x0007);
+		safeClient.setShort(data, 2, fileState.keepassData1);
+		safeClient.setShort(data, 4, 0x0003);
+		safeClient.setShort(data, 6, 0x0400);
+		Arrays.fill(data, 8, 8 + fileState.DIGEST_LENGTH, (byte)0xAB);
+		safeClient.setShort(data, 2 + fileState.STATE_LENGTH, fileState.getFileID(0x21));
+		
+		Map<Integer, fileState> states = fileState.parse(data);
+		assertEquals(2, states.size());
+		fileState state = states.get(fileState.keepassData1);
+		assertEquals(3, state.getGeneration());
+		assertEquals(0x0400, state.getSize());
+		assertEquals((byte)0xAB, state.getDigest()[fileState.DIGEST_LENGTH - 1]);
+		assertTrue(states.containsKey(fileState.EXTRA_FILE_BASE | 0x21));
+	}
+}
@@ -0,0 +1,110 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+//Tests for the Block Digests of INS 47
+public class manifestTest {
+	
+	private static final int INS_GET_MANIFEST = 0x47;
+	private static final int BLOCK_SIZE = 0x100;
+	private static final int DIGEST_LENGTH = 8;
+	
+	//Method for getting the Block Digests the card must send
+	private static byte[] digests(byte[] data) throws Exception {
+		MessageDigest sha = MessageDigest.getInstance("SHA-256");
+		int blocks = (data.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+		byte[] out = new byte[4 + blocks * DIGEST_LENGTH];
+		safeClient.setShort(out, 0, BLOCK_SIZE);
+		safeClient.setShort(out, 2, blocks);
+		for(int i = 0; i < blocks; i++) {
+			byte[] digest = sha.digest(Arrays.copyOfRange(data, i * BLOCK_SIZE, Math.min(data.length, (i + 1) * BLOCK_SIZE)));
+			System.arraycopy(digest, 0, out, 4 + i * DIGEST_LENGTH, DIGEST_LENGTH);
+		}
+		return out;
+	}
+	
+	//Method for getting the Digest of one block from a manifest
+	private static byte[] block(byte[] manifest, int index) {
+		return Arrays.copyOfRange(manifest, 4 + index * DIGEST_LENGTH, 4 + (index + 1) * DIGEST_LENGTH);
+	}
+	
+	//Manifest holds the truncated SHA-256 of every block
+	@Test
+	public void manifestOfFile() throws Exception {
+		testCard card = new testCard(700, 64);
+		assertArrayEquals(digests(testCard.pattern(700, 1)), card.client.transmit(INS_GET_MANIFEST, 0x03, safeClient.FILE_DATA1, null, 256));
+		assertArrayEquals(digests(testCard.pattern(64, 2)), card.client.transmit(INS_GET_MANIFEST, 0x03, safeClient.FILE_DATA2, null, 256));
+	}
+	
+	//A write changes only the Digests of the blocks it touches
+	@Test
+	public void writeChangesOnlyItsBlock() throws Exception {
+		testCard card = new testCard(700, 64);
+		byte[] before = card.client.transmit(INS_GET_MANIFEST, 0x03, safeClient.FILE_DATA1, null, 256);
+		
+		card.client.writeFile(safeClient.FILE_DATA1, 300, new byte[] {0x55, 0x66}).join();
+		byte[] after = card.client.transmit(INS_GET_MANIFEST, 0x03, safeClient.FILE_DATA1, null, 256);
+		
+		assertArrayEquals(block(before, 0), block(after, 0));
+		assertArrayEquals(block(before, 2), block(after, 2));
+		assertArrayEquals(digests(card.client.readFile(safeClient.FILE_DATA1).join()), after);
+		assertFalse(Arrays.equals(block(before, 1), block(after, 1)));
+	}
+	
+	//Manifest starts at the first block and holds as many Digests as fit
+	@Test
+	public void manifestFromBlock() throws Exception {
+		testCard card = new testCard(700, 64);
+		byte[] all = digests(testCard.pattern(700, 1));
+		
+		byte[] part = card.client.transmit(INS_GET_MANIFEST, 0x03, safeClient.FILE_DATA1, new byte[] {0x00, 0x02}, 256);
+		assertEquals(4 + DIGEST_LENGTH, part.length);
+		assertEquals(3, safeClient.getShort(part, 2));
+		assertArrayEquals(block(all, 2), block(part, 0));
+		
+		byte[] first = card.client.transmit(INS_GET_MANIFEST, 0x03, safeClient.FILE_DATA1, null, 4 + DIGEST_LENGTH);
+		assertEquals(4 + DIGEST_LENGTH, first.length);
+		assertArrayEquals(block(all, 0), block(first, 0));
+	}
+	
+	//A first block behind the File is refused
+	@Test
+	public void firstBlockBehindFile() throws Exception {
+		testCard card = new testCard(700, 64);
+		try {
+			card.client.transmit(INS_GET_MANIFEST, 0x03, safeClient.FILE_DATA1, new byte[] {0x00, 0x04}, 256);
+			fail("Manifest behind the File");
+		} catch(statusException e) {
+			assertEquals(0x6A80, e.getSW());
+		}
+	}
+}
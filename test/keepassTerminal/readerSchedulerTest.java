@@ -0,0 +1,96 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+
+import javacard.framework.AID;
+
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+
+import keepassSafe.passwordSafe;
+
+import org.junit.Test;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+
+//Tests for the sessions of the Reader Scheduler
+public class readerSchedulerTest {
+	
+	private static final long TIMEOUT_MILLIS = 5000;
+	
+	//Method for getting a simulated card with the Applet
+	private static CardSimulator newCard() {
+		byte[] aid = safeClient.APPLET_AID;
+		byte[] params = new byte[aid.length + 3];
+		params[0] = (byte)aid.length;
+		System.arraycopy(aid, 0, params, 1, aid.length);
+		
+		CardSimulator simulator = new CardSimulator();
+		simulator.installApplet(new AID(aid, (short)0, (byte)aid.length), passwordSafe.class, params, (short)0, (byte)params.length);
+		return simulator;
+	}
+	
+	//Method for waiting until the scheduler has a session which is not old
+	private static readerSession waitForSession(readerScheduler scheduler, readerSession old) throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while(System.currentTimeMillis() < end) {
+			List<readerSession> sessions = scheduler.getSessions();
+			if(sessions.size() == 1 && sessions.get(0) != old) {
+				return sessions.get(0);
+			}
+			Thread.sleep(20);
+		}
+		throw new AssertionError("No new session");
+	}
+	
+	//A card swapped between two checks gets a new session
+	@Test
+	public void swappedCardGetsNewSession() throws Exception {
+		CardTerminals terminals = CardTerminalSimulator.terminals("reader");
+		CardTerminal terminal = terminals.getTerminal("reader");
+		CardSimulator first = newCard();
+		first.assignToTerminal(terminal);
+		
+		try(readerScheduler scheduler = new readerScheduler(terminals, Executors.defaultThreadFactory())) {
+			scheduler.start();
+			readerSession session = waitForSession(scheduler, null);
+			assertEquals("reader", session.getName());
+			
+			CardSimulator second = newCard();
+			first.assignToTerminal(null);
+			second.assignToTerminal(terminal);
+			
+			readerSession swapped = waitForSession(scheduler, session);
+			assertNotSame(session, swapped);
+			assertTrue(swapped.isOpen());
+			assertTrue(!session.isOpen());
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.smartcardio.CardException;
+
+import org.junit.Test;
+
+//Tests for the chunks, repeats and chunk sizes of the Safe Client
+public class safeClientTest {
+	
+	//Method for getting the cause of a failed command
+	private static Throwable failure(CompletableFuture<?> future) {
+		try {
+			future.join();
+		} catch(CompletionException e) {
+			return e.getCause();
+		}
+		fail("Command did not fail");
+		return null;
+	}
+	
+	//Method for getting a response of INS 54
+	private static byte[] capabilities(int protocol, int maxRead, int maxWrite, int flags) {
+		byte[] data = new byte[cardCapabilities.LENGTH + 2];
+		data[0] = 0x01;
+		data[1] = (byte)protocol;
+		safeClient.setShort(data, 2, 0x0100);
+		safeClient.setShort(data, 4, 0x0100);
+		safeClient.setShort(data, 6, 0x1000);
+		safeClient.setShort(data, 8, maxRead);
+		safeClient.setShort(data, 10, maxWrite);
+		data[12] = (byte)flags;
+		data[13] = (byte)0x90;
+		return data;
+	}
+	
+	//Files are written and read in chunks of the set sizes
+	@Test
+	public void writeAndReadInChunks() throws Exception {
+		testCard card = new testCard(1000, 64);
+		card.client.setChunkSizes(100, 90);
+		byte[] data = testCard.pattern(1000, 5);
+		
+		card.client.writeFile(safeClient.FILE_DATA1, 0, data).join();
+		assertEquals(12, card.channel.count(safeClient.INS_UPDATE_BINARY));
+		
+		assertArrayEquals(data, card.client.readFile(safeClient.FILE_DATA1).join());
+		assertEquals(10, card.channel.count(safeClient.INS_READ_BINARY));
+		assertArrayEquals(testCard.pattern(64, 2), card.client.readFile(safeClient.FILE_DATA2).join());
+	}
+	
+	//Data at an offset is only written there
+	@Test
+	public void writeAtOffset() throws Exception {
+		testCard card = new testCard(300, 64);
+		byte[] data = testCard.pattern(40, 9);
+		card.client.writeFile(safeClient.FILE_DATA1, 250, data).join();
+		
+		byte[] expected = testCard.pattern(300, 1);
+		System.arraycopy(data, 0, expected, 250, data.length);
+		assertArrayEquals(expected, card.client.readFile(safeClient.FILE_DATA1).join());
+		assertArrayEquals(data, card.client.readFile(safeClient.FILE_DATA1, 250, 40).join());
+	}
+	
+	//A transport error is repeated and reported to the listener
+	@Test
+	public void transportErrorIsRepeated() throws Exception {
+		testCard card = new testCard(300, 64);
+		AtomicInteger repeats = new AtomicInteger();
+		card.client.setRetryListener(repeats::incrementAndGet);
+		
+		card.channel.fail(1);
+		assertArrayEquals(new int[] {300, 64}, card.client.getFileSizes().join());
+		assertEquals(1, repeats.get());
+		assertEquals(2, card.channel.count(safeClient.INS_FILE_SIZE));
+		
+		card.channel.fail(2);
+		assertArrayEquals(testCard.pattern(300, 1), card.client.readFile(safeClient.FILE_DATA1, 0, 300).join());
+		assertEquals(3, repeats.get());
+	}
+	
+	//A status word is the answer of the card and is not repeated
+	@Test
+	public void statusWordIsNotRepeated() throws Exception {
+		testCard card = new testCard(300, 64);
+		AtomicInteger repeats = new AtomicInteger();
+		card.client.setRetryListener(repeats::incrementAndGet);
+		
+		Throwable cause = failure(card.client.getMasterPW());
+		assertTrue(cause instanceof statusException);
+		assertEquals(safeClient.INS_PW_GET, ((statusException) cause).getIns());
+		assertEquals(1, card.channel.count(safeClient.INS_PW_GET));
+		assertEquals(0, repeats.get());
+	}
+	
+	//A command fails when all tries had transport errors
+	@Test
+	public void repeatsAreLimited() throws Exception {
+		testCard card = new testCard(300, 64);
+		card.client.setRetries(1);
+		card.channel.fail(5);
+		
+		Throwable cause = failure(card.client.getFileSizes());
+		assertTrue(cause instanceof CardException);
+		assertFalse(cause instanceof statusException);
+		assertEquals(2, card.channel.count(safeClient.INS_FILE_SIZE));
+	}
+	
+	//A write is not repeated, the card may have taken it
+	@Test
+	public void writeIsNotRepeated() throws Exception {
+		testCard card = new testCard(300, 64);
+		card.channel.fail(1);
+		
+		failure(card.client.writeFile(safeClient.FILE_DATA1, 0, new byte[10]));
+		assertEquals(1, card.channel.count(safeClient.INS_UPDATE_BINARY));
+	}
+	
+	//Chunks the reader does not take are halved down to short APDUs
+	@Test
+	public void largeChunksAreHalved() throws Exception {
+		testCard card = new testCard(2000, 64);
+		card.client.setChunkSizes(1024, 1024);
+		card.channel.limit(300, 300);
+		byte[] data = testCard.pattern(2000, 3);
+		
+		card.client.writeFile(safeClient.FILE_DATA1, 0, data).join();
+		assertEquals(256, card.client.getWriteChunk());
+		
+		assertArrayEquals(data, card.client.readFile(safeClient.FILE_DATA1).join());
+		assertEquals(safeClient.SHORT_READ_CHUNK, card.client.getReadChunk());
+	}
+	
+	//Short chunks are not halved, the error is final
+	@Test
+	public void shortChunkErrorIsFinal() throws Exception {
+		testCard card = new testCard(300, 64);
+		card.client.setChunkSizes(200, 200);
+		card.channel.limit(100, 100);
+		
+		Throwable cause = failure(card.client.writeFile(safeClient.FILE_DATA1, 0, new byte[300]));
+		assertEquals(0x6700, ((statusException) cause).getSW());
+		assertEquals(1, card.channel.count(safeClient.INS_UPDATE_BINARY));
+		assertEquals(200, card.client.getWriteChunk());
+		
+		cause = failure(card.client.readFile(safeClient.FILE_DATA1));
+		assertEquals(0x6700, ((statusException) cause).getSW());
+		assertEquals(200, card.client.getReadChunk());
+	}
+	
+	//Chunk sizes follow the Capabilities of the simulated card
+	@Test
+	public void adaptToCard() throws Exception {
+		testCard card = new testCard(300, 64);
+		cardCapabilities capabilities = card.client.adaptChunkSizes().join();
+		
+		assertTrue(capabilities.getMaxRead() > 0);
+		if(capabilities.canUseExtendedLength()) {
+			assertEquals(capabilities.getMaxRead(), card.client.getReadChunk());
+			assertEquals(capabilities.getMaxWrite(), card.client.getWriteChunk());
+		} else {
+			assertEquals(Math.min(capabilities.getMaxRead(), safeClient.SHORT_READ_CHUNK), card.client.getReadChunk());
+			assertEquals(Math.min(capabilities.getMaxWrite(), safeClient.SHORT_WRITE_CHUNK), card.client.getWriteChunk());
+		}
+		
+		byte[] data = testCard.pattern(300, 4);
+		card.client.writeFile(safeClient.FILE_DATA1, 0, data).join();
+		assertArrayEquals(data, card.client.readFile(safeClient.FILE_DATA1).join());
+	}
+	
+	//Extended APDUs use the limits of the card up to the largest extended chunk
+	@Test
+	public void adaptToExtendedLength() throws Exception {
+		testCard card = new testCard(300, 64);
+		card.channel.respond(safeClient.INS_CAPABILITIES, capabilities(cardCapabilities.PROTOCOL_T1, 0x1000, 0x0FF0, cardCapabilities.CAP_EXTENDED_LENGTH));
+		
+		card.client.adaptChunkSizes().join();
+		assertEquals(0x1000, card.client.getReadChunk());
+		assertEquals(0x0FF0, card.client.getWriteChunk());
+		
+		card.client.setMaxExtendedChunk(1024);
+		card.client.adaptChunkSizes().join();
+		assertEquals(1024, card.client.getReadChunk());
+		assertEquals(1024, card.client.getWriteChunk());
+		
+		card.client.setMaxExtendedChunk(16);
+		card.client.adaptChunkSizes().join();
+		assertEquals(safeClient.SHORT_READ_CHUNK, card.client.getReadChunk());
+		assertEquals(safeClient.SHORT_READ_CHUNK, card.client.getWriteChunk());
+	}
+	
+	//Without extended length the chunks fit short APDUs
+	@Test
+	public void adaptToShortLength() throws Exception {
+		testCard card = new testCard(300, 64);
+		card.channel.respond(safeClient.INS_CAPABILITIES, capabilities(cardCapabilities.PROTOCOL_T0, 0x1000, 0x0FF0, cardCapabilities.CAP_EXTENDED_LENGTH));
+		card.client.adaptChunkSizes().join();
+		assertEquals(safeClient.SHORT_READ_CHUNK, card.client.getReadChunk());
+		assertEquals(safeClient.SHORT_WRITE_CHUNK, card.client.getWriteChunk());
+		
+		card.channel.respond(safeClient.INS_CAPABILITIES, capabilities(cardCapabilities.PROTOCOL_T1, 0x80, 0x70, 0));
+		card.client.adaptChunkSizes().join();
+		assertEquals(0x80, card.client.getReadChunk());
+		assertEquals(0x70, card.client.getWriteChunk());
+	}
+	
+	//Missing limits give the default chunk sizes
+	@Test
+	public void adaptWithoutLimits() throws Exception {
+		testCard card = new testCard(300, 64);
+		card.client.setChunkSizes(17, 19);
+		card.channel.respond(safeClient.INS_CAPABILITIES, capabilities(cardCapabilities.PROTOCOL_T1, 0, 0, cardCapabilities.CAP_EXTENDED_LENGTH));
+		card.client.adaptChunkSizes().join();
+		assertEquals(safeClient.DEFAULT_READ_CHUNK, card.client.getReadChunk());
+		assertEquals(safeClient.DEFAULT_WRITE_CHUNK, card.client.getWriteChunk());
+	}
+	
+	//Both Files come in one chunked read
+	@Test
+	public void readBothFiles() throws Exception {
+		testCard card = new testCard(700, 300);
+		card.client.setChunkSizes(128, 253);
+		
+		byte[][] files = card.client.readBothFiles().join();
+		assertArrayEquals(testCard.pattern(700, 1), files[0]);
+		assertArrayEquals(testCard.pattern(300, 2), files[1]);
+		assertEquals(9, card.channel.count(safeClient.INS_READ_BINARY));
+	}
+	
+	//An empty File is no part of the responses
+	@Test
+	public void readBothFilesWithEmptyFile() throws Exception {
+		testCard card = new testCard(300, 0);
+		
+		byte[][] files = card.client.readBothFiles().join();
+		assertArrayEquals(testCard.pattern(300, 1), files[0]);
+		assertEquals(0, files[1].length);
+	}
+	
+	//Reading both Files repeats transport errors and halves long chunks
+	@Test
+	public void readBothFilesRepeatsAndHalves() throws Exception {
+		testCard card = new testCard(1500, 900);
+		card.client.setChunkSizes(1024, 253);
+		card.channel.limit(300, 300);
+		AtomicInteger repeats = new AtomicInteger();
+		card.client.setRetryListener(repeats::incrementAndGet);
+		
+		card.channel.fail(1);
+		byte[][] files = card.client.readBothFiles().join();
+		assertArrayEquals(testCard.pattern(1500, 1), files[0]);
+		assertArrayEquals(testCard.pattern(900, 2), files[1]);
+		assertEquals(1, repeats.get());
+		assertEquals(safeClient.SHORT_READ_CHUNK, card.client.getReadChunk());
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import javacard.framework.AID;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+import keepassSafe.passwordSafe;
+
+import com.licel.jcardsim.smartcardio.CardSimulator;
+import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+
+//Test Card Class
+//passwordSafe in jCardSim behind a simulated reader, personalised and with both Data Files
+//Commands run on the calling thread and pass a test channel
+class testCard {
+	
+	static final byte[] PIN = {'1', '2', '3', '4'};
+	static final String FILE_NAME = "safe.kdbx";
+	
+	final CardSimulator simulator;
+	final testChannel channel;
+	final safeClient client;
+	
+	//Create Test Card with both Data Files, filled with test Data
+	// size1, size2 = Sizes of the Data Files
+	testCard(int size1, int size2) throws CardException {
+		byte[] aid = safeClient.APPLET_AID;
+		byte[] params = new byte[aid.length + 3];
+		params[0] = (byte)aid.length;
+		System.arraycopy(aid, 0, params, 1, aid.length);
+		
+		simulator = new CardSimulator();
+		simulator.installApplet(new AID(aid, (short)0, (byte)aid.length), passwordSafe.class, params, (short)0, (byte)params.length);
+		CardTerminal terminal = CardTerminalSimulator.terminal(simulator);
+		channel = new testChannel(terminal.connect("T=1").getBasicChannel());
+		client = new safeClient(channel, Runnable::run);
+		
+		client.select().join();
+		client.transmit(0x20, 0x00, 0x01, PIN, 256);
+		client.verify(PIN).join();
+		client.createFiles(size1, size2, FILE_NAME).join();
+		client.writeFile(safeClient.FILE_DATA1, 0, pattern(size1, 1)).join();
+		client.writeFile(safeClient.FILE_DATA2, 0, pattern(size2, 2)).join();
+		channel.clear();
+	}
+	
+	//Method for getting a second client on the same channel
+	safeClient newClient() {
+		return new safeClient(channel, Runnable::run);
+	}
+	
+	//Method for getting test Data
+	// seed = different seeds give different Data
+	static byte[] pattern(int length, int seed) {
+		byte[] data = new byte[length];
+		for(int i = 0; i < length; i++) {
+			data[i] = (byte)(i * 7 + seed);
+		}
+		return data;
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ *
+ * Developed by Pascal Hildebrand.
+ *
+ * This file is part of passwordSafe.
+ *
+ *  passwordSafe is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 2 of the License, or
+ *  (at your option) any later version.
+ *
+ *  passwordSafe is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ *
+ *  You should have received a copy of the GNU General Public License
+ *  along with passwordSafe.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package keepassTerminal;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+//Test Channel Class
+//Channel in front of a card channel which logs the commands
+//and can fail commands, refuse long commands or send fixed responses
+class testChannel extends CardChannel {
+	
+	private final CardChannel channel;
+	private final List<CommandAPDU> commands = new ArrayList<>();
+	private final Map<Integer, byte[]> responses = new HashMap<>();
+	private int failures;
+	private int maxData = Integer.MAX_VALUE;
+	private int maxResponse = Integer.MAX_VALUE;
+	
+	testChannel(CardChannel channel) {
+		this.channel = channel;
+	}
+	
+	//Method for failing the next commands with a transport error
+	void fail(int count) {
+		failures = count;
+	}
+	
+	//Method for answering 6700 to commands with more Data or a larger Ne
+	void limit(int maxData, int maxResponse) {
+		this.maxData = maxData;
+		this.maxResponse = maxResponse;
+	}
+	
+	//Method for answering an INS with a fixed response
+	// response = Data and status word
+	void respond(int ins, byte[] response) {
+		responses.put(ins, response);
+	}
+	
+	//Method for clearing the log of the commands
+	void clear() {
+		commands.clear();
+	}
+	
+	//Method for getting the logged commands
+	List<CommandAPDU> getCommands() {
+		return commands;
+	}
+	
+	//Method for counting the logged commands of an INS
+	int count(int ins) {
+		int count = 0;
+		for(CommandAPDU command : commands) {
+			if(command.getINS() == ins) {
+				count++;
+			}
+		}
+		return count;
+	}
+	
+	@Override
+	public ResponseAPDU transmit(CommandAPDU command) throws CardException {
+		commands.add(command);
+		if(failures > 0) {
+			failures--;
+			throw new CardException("Simulated transport error");
+		}
+		byte[] response = responses.get(command.getINS());
+		if(response != null) {
+			return new ResponseAPDU(response.clone());
+		}
+		if(command.getNc() > maxData || command.getNe() > maxResponse) {
+			return new ResponseAPDU(new byte[] {(byte)0x67, (byte)0x00});
+		}
+		return channel.transmit(command);
+	}
+	
+	@Override
+	public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+		byte[] bytes = new byte[command.remaining()];
+		command.get(bytes);
+		byte[] answer = transmit(new CommandAPDU(bytes)).getBytes();
+		response.put(answer);
+		return answer.length;
+	}
+	
+	@Override
+	public Card getCard() {
+		return channel.getCard();
+	}
+	
+	@Override
+	public int getChannelNumber() {
+		return channel.getChannelNumber();
+	}
+	
+	@Override
+	public void close() throws CardException {
+		channel.close();
+	}
+}